@@ -585,6 +585,7 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        Database.shutdown();
         System.out.println("Bye");
     }
 
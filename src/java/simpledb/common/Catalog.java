@@ -1,9 +1,12 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -11,6 +14,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -37,6 +41,7 @@ public class Catalog {
 
     private Map<String, Integer> nameToId; // table name -> id
     private Map<Integer, CataItem> metaData; // id -> (Dbfile, primary key)
+    private Map<Integer, List<SecondaryIndex>> indexes; // table id -> secondary indexes
 
     /**
      * Constructor.
@@ -46,6 +51,7 @@ public class Catalog {
         // some code goes here
         this.nameToId = new ConcurrentHashMap<String, Integer>();
         this.metaData = new ConcurrentHashMap<Integer, CataItem>();
+        this.indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     }
 
     /**
@@ -80,6 +86,37 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Remove a table from the catalog, along with its name and its secondary
+     * indexes. Its file is left open.
+     * @param tableid the id of the table to remove
+     */
+    public void removeTable(int tableid) {
+        CataItem item = this.metaData.remove(tableid);
+        if(item != null)
+            this.nameToId.remove(item.name, tableid);
+        this.indexes.remove(tableid);
+    }
+
+    /**
+     * Add a secondary index on a table to the catalog. Inserts into and deletes
+     * from the table update it from then on. Its BTreeFile must be added as a
+     * table too.
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        this.indexes.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>())
+            .add(index);
+    }
+
+    /**
+     * @param tableid the id of a table
+     * @return the secondary indexes on the table, empty if there are none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return this.indexes.getOrDefault(tableid, Collections.emptyList());
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -137,15 +174,22 @@ public class Catalog {
         return this.metaData.get(id).name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for(CataItem item : this.metaData.values()){
+            item.file.close();
+        }
         this.metaData.clear();
         this.nameToId.clear();
+        this.indexes.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A field annotated with index gets a SecondaryIndex, stored in
+     * table.field.idx next to the table, built from the table if the file is missing
+     * or stale, see SecondaryIndex.open.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -163,6 +207,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<>();
                 ArrayList<Type> types = new ArrayList<>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -174,11 +219,13 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int j = 2; j < els2.length; j++) {
+                        if (els2[j].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[j].trim().equals("index"))
+                            indexed.add(names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[j]);
                             System.exit(0);
                         }
                     }
@@ -189,8 +236,18 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    String indexName = name + "." + namesAr[field] + ".idx";
+                    File indexFile = new File(baseFolder + "/" + indexName);
+                    // built the first time the table is loaded with it, or when stale
+                    Transaction tr = new Transaction();
+                    tr.start();
+                    SecondaryIndex.open(tr.getId(), tabHf.getId(), field, indexFile, indexName);
+                    tr.commit();
+                    System.out.println("Added index : " + indexName);
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | DbException | TransactionAbortedException e) {
             e.printStackTrace();
             System.exit(0);
         } catch (IndexOutOfBoundsException e) {
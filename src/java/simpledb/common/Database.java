@@ -58,6 +58,7 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        _instance.get()._bufferpool.stopCleaner();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
@@ -72,7 +73,21 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // stop the page cleaner while its catalog and log are still current
+        _instance.get()._bufferpool.stopCleaner();
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.clear();
+    }
+
+    /**
+     * Shut the database down: write back committed pages and close the
+     * files of all tables.
+     */
+    public static void shutdown() {
+        // write back what the page cleaner has not, if it runs
+        getBufferPool().setForce(true);
+        getBufferPool().stopCleaner();
+        getCatalog().clear();
     }
 
 }
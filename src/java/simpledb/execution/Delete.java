@@ -89,6 +89,9 @@ public class Delete extends Operator {
             try {
                 buffer.deleteTuple(tid, child.next());
                 deleted ++;
+            } catch (TransactionAbortedException e) {
+                // the caller has to abort the transaction
+                throw e;
             } catch (Exception e) {
                 e.printStackTrace();
             }
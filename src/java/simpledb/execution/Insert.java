@@ -96,6 +96,9 @@ public class Insert extends Operator {
             try{
                 this.buffer.insertTuple(tid, tableId, child.next());
                 inserted ++;
+            } catch (TransactionAbortedException e) {
+                // the caller has to abort the transaction
+                throw e;
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,266 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.*;
+import java.util.function.Function;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeBulkLoader builds a B+ tree over the tuples of an existing table, the way
+ * CREATE INDEX would, rather than inserting the tuples one by one. The tuples are
+ * sorted on the key field with an external merge sort, the pages of the tree are
+ * written out bottom-up, filled up to a fill factor, and the new BTreeFile is added
+ * to the catalog.
+ * <p>
+ * The table is read on behalf of a transaction, so it stays readable while the
+ * index is built, and writers wait for the transaction to complete. The B+ tree
+ * file is written directly rather than through the buffer pool: it is built in a
+ * temporary file, in the catalog under no name other transactions know, and only
+ * moved over the target file once complete, so a crash never leaves a partial
+ * tree behind.
+ *
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkLoader {
+
+	/** Default number of pages of tuples sorted in memory at a time. */
+	public static final int DEFAULT_RUN_PAGES = 1000;
+
+	/**
+	 * Build a B+ tree over a table, sorting DEFAULT_RUN_PAGES pages of tuples in
+	 * memory at a time.
+	 * @see #load(TransactionId, int, int, File, String, double, int)
+	 */
+	public static BTreeFile load(TransactionId tid, int tableid, int keyField, File bFile,
+			String name, double fillFactor)
+					throws IOException, DbException, TransactionAbortedException {
+		return load(tid, tableid, keyField, bFile, name, fillFactor, DEFAULT_RUN_PAGES);
+	}
+
+	/**
+	 * Build a B+ tree over a table and add it to the catalog.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the id of the table to index
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param bFile - the file on disk to back the BTreeFile, overwritten. It must not
+	 * back a table in use.
+	 * @param name - the name of the BTreeFile in the catalog
+	 * @param fillFactor - the fraction of the slots of each page to fill, in (0, 1].
+	 * Leaving slots empty saves later inserts from splitting the pages right away.
+	 * @param runPages - the number of pages of tuples to sort in memory at a time
+	 * @return the BTreeFile
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile load(TransactionId tid, int tableid, int keyField, File bFile,
+			String name, double fillFactor, int runPages)
+					throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		return load(tid, tableid, td, Function.identity(), keyField, bFile, name,
+				fillFactor, runPages);
+	}
+
+	/**
+	 * Build a B+ tree over the entries derived from the tuples of a table, such
+	 * as the (key, record id) entries of a SecondaryIndex, and add it to the catalog.
+	 *
+	 * @param td - the tuple descriptor of the entries
+	 * @param entry - maps a tuple of the table to its entry in the B+ tree
+	 * @param keyField - the field of the entries the B+ tree will be keyed on
+	 * @see #load(TransactionId, int, int, File, String, double, int)
+	 */
+	static BTreeFile load(TransactionId tid, int tableid, TupleDesc td,
+			Function<Tuple, Tuple> entry, int keyField, File bFile, String name,
+			double fillFactor, int runPages)
+					throws IOException, DbException, TransactionAbortedException {
+		if(fillFactor <= 0 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		if(runPages < 1)
+			throw new IllegalArgumentException("runs must hold at least one page");
+
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Comparator<Tuple> comparator = new BTreeFileEncoder.TupleComparator(keyField);
+
+		// sort the tuples in runs which fit in memory, and spill all but the last one
+		int tuplesPerPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+		int runTuples = Math.max(1, runPages * tuplesPerPage);
+		List<File> runFiles = new ArrayList<>();
+		List<Tuple> run = new ArrayList<>();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		try {
+			while(it.hasNext()) {
+				run.add(entry.apply(it.next()));
+				if(run.size() == runTuples) {
+					run.sort(comparator);
+					runFiles.add(writeRun(run));
+					run.clear();
+				}
+			}
+		} finally {
+			it.close();
+		}
+		run.sort(comparator);
+
+		// merge the runs in one pass, with one buffered reader per run
+		List<RunFileIterator> readers = new ArrayList<>();
+		try {
+			List<Iterator<Tuple>> runs = new ArrayList<>();
+			for(File f : runFiles) {
+				RunFileIterator reader = new RunFileIterator(f, td);
+				readers.add(reader);
+				runs.add(reader);
+			}
+			runs.add(run.iterator());
+
+			// the tree is written to a temporary file next to bFile, which is only
+			// replaced once the tree is complete and on disk. The pages need the tuple
+			// descriptor from the catalog, so the temporary file is in it meanwhile
+			File tmpFile = new File(bFile.getPath() + ".tmp");
+			new FileOutputStream(tmpFile).close();
+			BTreeFile tmp = new BTreeFile(tmpFile, keyField, td);
+			Database.getCatalog().addTable(tmp);
+			try {
+				BTreeFileEncoder.writeTree(tmp, new MergeIterator(runs, comparator),
+						BufferPool.getPageSize(), typeAr, keyField, fillFactor);
+				tmp.force();
+			} catch (IOException | DbException | RuntimeException e) {
+				tmpFile.delete();
+				throw e;
+			} finally {
+				Database.getCatalog().removeTable(tmp.getId());
+				tmp.close();
+			}
+			Files.move(tmpFile.toPath(), bFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			BTreeFile bf = new BTreeFile(bFile, keyField, td);
+			Database.getCatalog().addTable(bf, name, td.getFieldName(keyField));
+			return bf;
+		} finally {
+			for(RunFileIterator reader : readers) {
+				reader.close();
+			}
+			for(File f : runFiles) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Spill a sorted run of tuples to a temporary file.
+	 * @param run - the tuples, sorted
+	 * @return the file holding the tuples' fields
+	 * @throws IOException
+	 */
+	private static File writeRun(List<Tuple> run) throws IOException {
+		File f = File.createTempFile("btree_run", ".dat");
+		f.deleteOnExit();
+		try(DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f)))) {
+			dos.writeInt(run.size());
+			for(Tuple t : run) {
+				for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Iterator over the tuples of a run spilled by writeRun.
+	 */
+	private static class RunFileIterator implements Iterator<Tuple>, Closeable {
+		private final DataInputStream dis;
+		private final TupleDesc td;
+		private int remaining;
+
+		RunFileIterator(File f, TupleDesc td) throws IOException {
+			this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.td = td;
+			this.remaining = dis.readInt();
+		}
+
+		public boolean hasNext() {
+			return remaining > 0;
+		}
+
+		public Tuple next() {
+			if(remaining == 0)
+				throw new NoSuchElementException();
+			Tuple t = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(dis));
+				}
+			} catch (ParseException e) {
+				throw new RuntimeException(e);
+			}
+			remaining--;
+			return t;
+		}
+
+		public void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Iterator merging sorted runs of tuples into one sorted sequence.
+	 */
+	private static class MergeIterator implements Iterator<Tuple> {
+		/** a run and its next tuple */
+		private static class Head {
+			final Iterator<Tuple> run;
+			Tuple next;
+
+			Head(Iterator<Tuple> run) {
+				this.run = run;
+				this.next = run.next();
+			}
+		}
+
+		private final PriorityQueue<Head> heads;
+
+		MergeIterator(List<Iterator<Tuple>> runs, Comparator<Tuple> comparator) {
+			this.heads = new PriorityQueue<>(Math.max(1, runs.size()),
+					(h1, h2) -> comparator.compare(h1.next, h2.next));
+			for(Iterator<Tuple> run : runs) {
+				if(run.hasNext())
+					heads.add(new Head(run));
+			}
+		}
+
+		public boolean hasNext() {
+			return !heads.isEmpty();
+		}
+
+		public Tuple next() {
+			Head head = heads.poll();
+			if(head == null)
+				throw new NoSuchElementException();
+			Tuple t = head.next;
+			if(head.run.hasNext()) {
+				head.next = head.run.next();
+				heads.add(head);
+			}
+			return t;
+		}
+	}
+}
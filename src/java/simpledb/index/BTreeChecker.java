@@ -1,5 +1,6 @@
 package simpledb.index;
 
+import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
@@ -83,7 +84,10 @@ public class BTreeChecker {
                                        BTreePageId pageId, Field lowerBound, Field upperBound,
                                        BTreePageId parentId, boolean checkOccupancy, int depth) throws
             TransactionAbortedException, DbException {
+        boolean pinned = !dirtypages.containsKey(pageId);
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
+        // we keep the lock and our reference, the walk may visit more pages than the pool holds
+        if (pinned) Database.getBufferPool().unpinPage(tid, pageId);
         assert(page.getParentId().equals(parentId));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
@@ -29,6 +29,8 @@ import simpledb.transaction.TransactionId;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	/** kept open across reads and writes, see {@link #close()} */
+	private final DbFileChannel channel;
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
@@ -43,6 +45,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.channel = new DbFileChannel(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -87,10 +90,10 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(pageBuf, 0);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -102,12 +105,7 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -127,8 +125,6 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
     }
 
 	/**
@@ -141,16 +137,48 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().getPageNumber()));
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePageBytes(PageId pid, int offset, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		long start = 0;
+		long end = BTreeRootPtrPage.getPageSize();
+		if(id.pgcateg() != BTreePageId.ROOT_PTR) {
+			start = pageOffset(id.getPageNumber());
+			end = start + BufferPool.getPageSize();
+		}
+		if(channel.size() < end) {
+			channel.write(new byte[1], end - 1);
 		}
+		channel.write(data, start + offset);
+	}
+
+	/**
+	 * Returns the offset in the file of the page with the given number. 
+	 * Pages are numbered from 1, after the root pointer page.
+	 */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Force the pages written so far to disk.
+	 * @throws IOException
+	 */
+	void force() throws IOException {
+		channel.force();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() {
+		channel.close();
 	}
 	
 	/**
@@ -170,61 +198,141 @@ public class BTreeFile implements DbFile {
 
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * the left-most page possibly containing the key field f. It locks the internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
+	 * The internal nodes are only locked for the descent: each lock is released once the
+	 * child is locked (lock coupling), unless the transaction held it before. Only the leaf
+	 * stays locked until the transaction completes, so the root does not keep writers
+	 * splitting it waiting for every transaction that went through it.
+	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parentId - the page locked just before pid, to release once pid is locked, or null
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
+	 * @param locked - if not null, gets the id of the leaf page added when the transaction
+	 * did not hold it before, so the caller may release it again
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId parentId,
+									   BTreePageId pid, Permissions perm, Field f, Set<PageId> locked)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
+		final boolean held = holds(tid, dirtypages, pid);
 		// base case: given a leaf page
-		if(pid.pgcateg() == BTreePageId.LEAF) 
-			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			BTreeLeafPage leafPage = (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
+			if(parentId != null)
+				release(tid, dirtypages, parentId);
+			if(!held && locked != null)
+				locked.add(pid);
+			return leafPage;
+		}
 		
 		final BTreeInternalPage indexPage = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		final Iterator<BTreeEntry> iter = indexPage.iterator();
+		if(parentId != null)
+			release(tid, dirtypages, parentId);
+		BTreePageId nextPageId = indexPage.findChild(f);
+		// internal pages we only read need not stay pinned
+		if(!dirtypages.containsKey(pid))
+			Database.getBufferPool().unpinPage(tid, pid);
+		return findLeafPage(tid, dirtypages, held ? null : pid, nextPageId, perm, f, locked);
+	}
 
-		BTreePageId nextPageId = null;
-		while(iter.hasNext()){
-			BTreeEntry entry = iter.next();
-			// use <= instead of < to deal with possible duplicate
-			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())){
-				nextPageId = entry.getLeftChild();
-				break;
-			}
-			else{
-				nextPageId = entry.getRightChild();
+	/**
+	 * Find and lock the leaf page into which a tuple with key field f should be inserted,
+	 * when that leaf page may have to split. The pages on the path are locked with
+	 * READ_WRITE permission from the root pointer page down, since a split may modify
+	 * them. Once a page has an empty slot, a split stops there, so the locks taken on the
+	 * pages above it are released.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for
+	 * @return the leaf page into which a tuple with key field f should be inserted
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, BTreePageId, Permissions, Field, Set)
+	 * 
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeLeafPage findLeafPageToSplit(TransactionId tid, Map<PageId, Page> dirtypages, Field f)
+			throws DbException, TransactionAbortedException {
+		// the pages locked for this descent only, the lowest on top
+		final Deque<PageId> path = new ArrayDeque<>();
+
+		final BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(!holds(tid, dirtypages, rootPtrId))
+			path.push(rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+
+		BTreePageId pid = rootPtr.getRootId();
+		while(true) {
+			final boolean held = holds(tid, dirtypages, pid);
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			if(page.getNumEmptySlots() > 0) {
+				while(!path.isEmpty())
+					release(tid, dirtypages, path.pop());
 			}
+			if(!held)
+				path.push(pid);
+			if(pid.pgcateg() == BTreePageId.LEAF)
+				return (BTreeLeafPage) page;
+			pid = ((BTreeInternalPage) page).findChild(f);
 		}
-		return findLeafPage(tid, dirtypages, nextPageId, perm, f);
+	}
+
+	/**
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page
+	 * @return whether the transaction already holds a lock on the page, which a descent
+	 * through it must then keep
+	 */
+	private boolean holds(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Release a page the transaction locked only to find its way through the tree. The
+	 * page must not have been modified.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the page
+	 */
+	private void release(TransactionId tid, Map<PageId, Page> dirtypages, PageId pid) {
+		if(dirtypages.remove(pid) == null)
+			Database.getBufferPool().unpinPage(tid, pid);
+		Database.getBufferPool().unsafeReleasePage(tid, pid);
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Used by the BTreeFile iterator. The root pointer page is only locked for the
+	 * descent as well.
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, BTreePageId, Permissions, Field, Set)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = holds(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(held)
+			Database.getBufferPool().unpinPage(tid, rootPtrId);
+		return findLeafPage(tid, dirtypages, held ? null : rootPtrId, rootId, Permissions.READ_ONLY, f, null);
 	}
 
 	/**
@@ -441,7 +549,11 @@ public class BTreeFile implements DbFile {
 	private void updateParentPointer(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
 			throws DbException, TransactionAbortedException {
 
+		boolean pinned = !dirtypages.containsKey(child);
 		BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+		// most children are only read here, do not keep them pinned
+		if(pinned)
+			Database.getBufferPool().unpinPage(tid, child);
 
 		if(!p.getParentId().equals(pid)) {
 			p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
@@ -485,6 +597,10 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * Pages added to dirtypages are unpinned right away, since dirtypages holds on to them for the
+	 * rest of the operation and they return to the buffer pool as dirty pages. Pages fetched
+	 * read-only stay pinned until the caller unpins them or the transaction completes.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -504,6 +620,7 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				Database.getBufferPool().unpinPage(tid, pid);
 			}
 			return p;
 		}
@@ -524,18 +641,32 @@ public class BTreeFile implements DbFile {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = holds(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			held = true;
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// and split the leaf page if there are no more slots available. Most inserts
+		// do not split, so the internal pages are first only read on the way down
+		Set<PageId> locked = new HashSet<>();
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, held ? null : rootPtrId, rootId,
+				Permissions.READ_WRITE, t.getField(keyField), locked);
+		if(leafPage.getNumEmptySlots() == 0) {
+			// the descent to split locks from the root pointer down, so it must not wait
+			// for its pages while holding the leaf, which another splitting insert may be
+			// waiting for above
+			if(locked.contains(leafPage.getId()))
+				release(tid, dirtypages, leafPage.getId());
+			leafPage = findLeafPageToSplit(tid, dirtypages, t.getField(keyField));
+		}
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -1048,13 +1179,8 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.append(BTreeRootPtrPage.createEmptyPageData());
+				channel.append(BTreeLeafPage.createEmptyPageData());
 			}
 		}
 
@@ -1076,9 +1202,14 @@ public class BTreeFile implements DbFile {
 	 */
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
+		// get a read lock on the root pointer page and use it to locate the first header page.
+		// The header pages are locked from there on, so the lock need not be kept
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = holds(tid, dirtypages, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
+		if(!held)
+			release(tid, dirtypages, rootPtrId);
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
@@ -1110,11 +1241,7 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.append(BTreeInternalPage.createEmptyPageData());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1145,10 +1272,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1296,10 +1420,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curp = f.findLeafPage(tid, null);
 		it = curp.iterator();
 	}
 
@@ -1316,6 +1437,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			unpin();
 			if(nextp == null) {
 				curp = null;
 			}
@@ -1346,9 +1468,18 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		unpin();
 		it = null;
 		curp = null;
 	}
+
+	/**
+	 * give up the pin on the current leaf page, the lock is kept
+	 */
+	private void unpin() {
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
+	}
 }
 
 /**
@@ -1381,17 +1512,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			// start from the first tuple which may match
+			curp = f.findLeafPage(tid, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1429,6 +1559,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				return null;
 			}
 			else {
+				Database.getBufferPool().unpinPage(tid, curp.getId());
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
@@ -1451,6 +1582,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		if (curp != null)
+			Database.getBufferPool().unpinPage(tid, curp.getId());
 		it = null;
+		curp = null;
 	}
 }
@@ -219,6 +219,30 @@ public class BTreeFileEncoder {
 
 		// add the tuples to B+ tree file
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		writeTree(bf, tuples.iterator(), npagebytes, typeAr, keyField, 1.0);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Write out a B+ tree bottom-up: the leaf pages in key order, and the internal pages
+	 * as they fill up. Pages are filled up to the fill factor, except the last two pages of
+	 * each level which evenly share the remaining tuples or entries.
+	 * 
+	 * @param bf - the empty BTreeFile to write to
+	 * @param tuples - the tuples, sorted on the keyField
+	 * @param npagebytes - number of bytes per page
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of the slots of each page to fill, in (0, 1]
+	 * @throws IOException
+	 * @throws DbException
+	 */
+	static void writeTree(BTreeFile bf, Iterator<Tuple> tuples, int npagebytes,
+			Type[] typeAr, int keyField, double fillFactor)
+					throws IOException, DbException {
+		int numFields = typeAr.length;
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -235,8 +259,11 @@ public class BTreeFileEncoder {
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
-		List<List<BTreeEntry>> entries = new ArrayList<>();
+		// the tuples and entries written to each page
+		nrecords = Math.max(1, (int) (nrecords * fillFactor));
+		nentries = Math.max(1, (int) (nentries * fillFactor));
 
+		List<List<BTreeEntry>> entries = new ArrayList<>();
 		// first add some bytes for the root pointer page
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
 				BTreeRootPtrPage.createEmptyPageData()));
@@ -249,7 +276,8 @@ public class BTreeFileEncoder {
 		List<Tuple> page1 = new ArrayList<>();
 		List<Tuple> page2 = new ArrayList<>();
 		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
+		while(tuples.hasNext()) {
+			Tuple tup = tuples.next();
 			if(page1.size() < nrecords) {
 				page1.add(tup);
 			}
@@ -330,29 +358,28 @@ public class BTreeFileEncoder {
 
 		// set all the parent and sibling pointers
 		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
+		setRightSiblingPtrs(bf, lastPid);
 
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
 	}
 
 	/**
 	 * Set all the right sibling pointers by following the left sibling pointers
 	 * 
 	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
+	 * @param pid - the id of the last leaf page, which has no right sibling
 	 * @throws IOException
 	 * @throws DbException
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
+	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid) 
 			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
+		// iterate rather than recurse, there may be many leaf pages
+		BTreePageId rightSiblingId = null;
+		while(pid != null) {
+			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
+			page.setRightSiblingId(rightSiblingId);
+			bf.writePage(page);
+			rightSiblingId = pid;
+			pid = page.getLeftSiblingId();
 		}
 	}
 
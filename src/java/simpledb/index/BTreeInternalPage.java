@@ -603,6 +603,7 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		slotsChanged();
 	}
 
 	/**
@@ -621,6 +622,31 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * Find the child on the path to the left-most leaf page possibly containing the key
+	 * field f: the left child of the first key greater than or equal to f, or the last
+	 * child. Binary searches the keys, and builds no entries.
+	 * @param f - the key field to search for, or null for the left-most child
+	 * @return the id of the child, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int[] slots = usedSlots(numSlots);
+		if(slots.length < 2)
+			return null;
+
+		// slots[0] holds the left-most child only, the keys are in slots[1..]
+		int lo = 1;
+		int hi = slots.length;
+		while(f != null && lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(f.compare(Op.LESS_THAN_OR_EQ, keys[slots[mid]]))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return new BTreePageId(pid.getTableId(), children[slots[lo - 1]], childCategory);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -476,6 +476,7 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		slotsChanged();
 	}
 
 	/**
@@ -494,6 +495,36 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @param f - the key field to search for
+	 * @return an iterator over the tuples on this page whose key field is greater than or
+	 * equal to f (calling remove on this iterator throws an UnsupportedOperationException)
+	 * @see #findSlot(Field)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, findSlot(f));
+	}
+
+	/**
+	 * Find the first tuple whose key field is greater than or equal to f. Binary searches
+	 * the tuples, which are kept in sorted order.
+	 * @param f - the key field to search for
+	 * @return the slot of that tuple, or the number of slots if there is none
+	 */
+	public int findSlot(Field f) {
+		int[] slots = usedSlots(numSlots);
+		int lo = 0;
+		int hi = slots.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(f.compare(Predicate.Op.LESS_THAN_OR_EQ, tuples[slots[mid]].getField(keyField)))
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return lo < slots.length ? slots[lo] : numSlots;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -532,6 +563,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstTuple) {
+		this.p = p;
+		this.curTuple = firstTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -1,5 +1,7 @@
 package simpledb.index;
 
+import java.util.Arrays;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
@@ -31,6 +33,9 @@ public abstract class BTreePage implements Page {
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
+	/** the used slots in order, or null after a slot was filled or cleared */
+	private volatile int[] usedSlots = null;
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -144,5 +149,33 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Get the used slots of this page in order, so that binary search can skip the empty
+	 * slots between the sorted keys. The slots are collected again only after one of them
+	 * was filled or cleared.
+	 * @param numSlots - the number of slots on this page
+	 * @return the used slots in ascending order
+	 */
+	protected int[] usedSlots(int numSlots) {
+		int[] slots = usedSlots;
+		if(slots == null) {
+			int[] used = new int[numSlots];
+			int n = 0;
+			for(int i=0; i<numSlots; i++)
+				if(isSlotUsed(i))
+					used[n++] = i;
+			slots = Arrays.copyOf(used, n);
+			usedSlots = slots;
+		}
+		return slots;
+	}
+
+	/**
+	 * Forget the used slots, called whenever a slot is filled or cleared.
+	 */
+	protected void slotsChanged() {
+		usedSlots = null;
+	}
+
 }
 
@@ -0,0 +1,260 @@
+package simpledb.index;
+
+import java.io.*;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree over one field of a HeapFile table. Rather than the
+ * tuples themselves, its BTreeFile stores one (key, page number, slot) entry per
+ * tuple of the table, pointing to the tuple's RecordId, so a table may have any
+ * number of them.
+ * <p>
+ * The indexes of a table are kept in the catalog, and BufferPool.insertTuple and
+ * deleteTuple, and with them the Insert and Delete operators, update them along
+ * with the table on behalf of the same transaction: the entries are locked, logged
+ * and rolled back like the tuples are.
+ *
+ * @see simpledb.common.Catalog#addIndex
+ * @see BTreeBulkLoader
+ */
+public class SecondaryIndex {
+
+	private final int tableid;
+	private final int field;
+	private final BTreeFile file;
+
+	/**
+	 * Constructs an index over a table, stored in a BTreeFile of entries.
+	 *
+	 * @param tableid - the id of the indexed HeapFile
+	 * @param field - the indexed field of the table's tuples
+	 * @param file - the BTreeFile of entries, keyed on field 0, see entryDesc
+	 */
+	public SecondaryIndex(int tableid, int field, BTreeFile file) {
+		this.tableid = tableid;
+		this.field = field;
+		this.file = file;
+	}
+
+	/**
+	 * Build an index over a field of a table with BTreeBulkLoader, and add it to
+	 * the catalog, along with its BTreeFile.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the id of the HeapFile to index
+	 * @param field - the field to index
+	 * @param bFile - the file on disk to back the BTreeFile, overwritten
+	 * @param name - the name of the BTreeFile in the catalog
+	 * @param fillFactor - the fraction of the slots of each page to fill, in (0, 1]
+	 * @return the index
+	 * @throws IOException
+	 * @throws DbException if the table is not a HeapFile
+	 * @throws TransactionAbortedException
+	 */
+	public static SecondaryIndex create(TransactionId tid, int tableid, int field, File bFile,
+			String name, double fillFactor)
+					throws IOException, DbException, TransactionAbortedException {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+			throw new DbException("table " + tableid + " is not a HeapFile");
+		TupleDesc td = entryDesc(Database.getCatalog().getTupleDesc(tableid).getFieldType(field));
+		BTreeFile bf = BTreeBulkLoader.load(tid, tableid, td, t -> entry(td, t, field), 0,
+				bFile, name, fillFactor, BTreeBulkLoader.DEFAULT_RUN_PAGES);
+		SecondaryIndex index = new SecondaryIndex(tableid, field, bf);
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/**
+	 * Open an index over a field of a table from the file create built it in, and
+	 * add it to the catalog, along with its BTreeFile. The file is only trusted if it
+	 * was written after the table was: the table may have been written since by a
+	 * program which did not maintain the index, and neither the number of entries nor
+	 * anything short of the entries themselves tells whether it was. Otherwise, or if
+	 * there is no such file, the index is built again.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param tableid - the id of the indexed HeapFile
+	 * @param field - the indexed field
+	 * @param bFile - the file on disk backing the BTreeFile
+	 * @param name - the name of the BTreeFile in the catalog
+	 * @return the index
+	 * @throws IOException
+	 * @throws DbException if the table is not a HeapFile
+	 * @throws TransactionAbortedException
+	 */
+	public static SecondaryIndex open(TransactionId tid, int tableid, int field, File bFile,
+			String name) throws IOException, DbException, TransactionAbortedException {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+		if(!(table instanceof HeapFile))
+			throw new DbException("table " + tableid + " is not a HeapFile");
+		if(bFile.length() == 0
+				|| bFile.lastModified() < ((HeapFile) table).getFile().lastModified())
+			return create(tid, tableid, field, bFile, name, 1.0);
+		TupleDesc td = entryDesc(table.getTupleDesc().getFieldType(field));
+		BTreeFile bf = new BTreeFile(bFile, 0, td);
+		Database.getCatalog().addTable(bf, name, td.getFieldName(0));
+		SecondaryIndex index = new SecondaryIndex(tableid, field, bf);
+		Database.getCatalog().addIndex(index);
+		return index;
+	}
+
+	/**
+	 * @param keyType - the type of the indexed field
+	 * @return the tuple descriptor of the entries of an index on a field of that type
+	 */
+	public static TupleDesc entryDesc(Type keyType) {
+		return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { "key", "page", "slot" });
+	}
+
+	/**
+	 * @param td - the tuple descriptor of the entries
+	 * @param t - a tuple of the table, with its RecordId set
+	 * @param field - the indexed field
+	 * @return the entry of t
+	 */
+	private static Tuple entry(TupleDesc td, Tuple t, int field) {
+		return entry(td, t.getField(field), t.getRecordId());
+	}
+
+	private static Tuple entry(TupleDesc td, Field key, RecordId rid) {
+		Tuple e = new Tuple(td);
+		e.setField(0, key);
+		e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(2, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the indexed field of the table's tuples
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the BTreeFile of entries
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Add the entry of a tuple just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with the RecordId the table gave it
+	 */
+	public void insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(),
+				entry(file.getTupleDesc(), t, field));
+	}
+
+	/**
+	 * Remove the entry of a tuple deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple
+	 * @param rid - the RecordId the tuple had, the table clears it
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public void deleteTuple(TransactionId tid, Tuple t, RecordId rid)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple e = null;
+		Tuple target = entry(file.getTupleDesc(), t.getField(field), rid);
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, target.getField(0)));
+		it.open();
+		try {
+			while(it.hasNext()) {
+				Tuple next = it.next();
+				if(next.getField(1).equals(target.getField(1))
+						&& next.getField(2).equals(target.getField(2))) {
+					e = next;
+					break;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		if(e == null)
+			throw new DbException("index on field " + field + " has no entry for " + rid);
+		Database.getBufferPool().deleteTuple(tid, e);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed field matches a
+	 * predicate, in the order of the field. It takes read locks on the pages of the
+	 * index it searches and on the pages of the table it fetches tuples from.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate on the indexed field
+	 * @return an iterator over the matching tuples
+	 */
+	public DbFileIterator lookup(TransactionId tid, IndexPredicate ipred) {
+		return new SecondaryIndexIterator(tid, file.indexIterator(tid, ipred));
+	}
+
+	/**
+	 * Helper class that fetches the tuples of the table the entries of an index
+	 * point to.
+	 */
+	private class SecondaryIndexIterator extends AbstractDbFileIterator {
+
+		private final TransactionId tid;
+		private final DbFileIterator entries;
+
+		SecondaryIndexIterator(TransactionId tid, DbFileIterator entries) {
+			this.tid = tid;
+			this.entries = entries;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries.open();
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if(!entries.hasNext())
+				return null;
+			Tuple e = entries.next();
+			HeapPageId pid = new HeapPageId(tableid, ((IntField) e.getField(1)).getValue());
+			BufferPool buf = Database.getBufferPool();
+			HeapPage page = (HeapPage) buf.getPage(tid, pid, Permissions.READ_ONLY);
+			try {
+				Tuple t = page.getTuple(((IntField) e.getField(2)).getValue());
+				if(t == null)
+					throw new DbException("index on field " + field + " points to an empty slot");
+				return t;
+			} finally {
+				buf.unpinPage(tid, pid);
+			}
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			super.close();
+			entries.rewind();
+		}
+
+		public void close() {
+			super.close();
+			entries.close();
+		}
+	}
+}
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.LockManager;
 import simpledb.transaction.LockType;
 import simpledb.transaction.TransactionAbortedException;
@@ -11,9 +12,18 @@ import simpledb.transaction.TransactionId;
 
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -23,6 +33,35 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages live in frames. Every call to {@link #getPage} pins the page's frame
+ * on behalf of the transaction, and a pinned frame is never evicted. Callers
+ * that are done with a page call {@link #unpinPage}; pins a transaction still
+ * holds are dropped when it completes.
+ * <p>
+ * By default the buffer pool runs FORCE: commit writes back every page the
+ * transaction dirtied. In NO-FORCE mode, see {@link #setForce}, commit only
+ * logs the pages and a background page cleaner writes them back later;
+ * recovery redoes from the log whatever was not written.
+ * <p>
+ * Likewise the buffer pool runs NO STEAL unless told otherwise: dirty pages
+ * stay in memory until their transaction completes. In STEAL mode, see
+ * {@link #setSteal}, a dirty page may be written back early to make room,
+ * and the log undoes it if its transaction aborts.
+ * <p>
+ * In snapshot isolation mode, see {@link #setSnapshotIsolation}, reads take
+ * no locks. A transaction reads every page as it was committed when the
+ * transaction first asked the buffer pool for a page, its start timestamp:
+ * commit keeps the page images it replaces in a version chain per page as
+ * long as a running transaction may still read them. Writers lock pages
+ * exclusively as usual, and the first of two concurrent writers of a page
+ * to lock it wins: the other aborts once it gets the lock.
+ * <p>
+ * In record locking mode, see {@link #setRecordLocking}, writers of a heap
+ * page lock the records they change rather than the page, so transactions
+ * writing different records of a page run side by side. Commit and abort
+ * then apply to the transaction's records only: the page's before-image
+ * takes the committed records, and aborted ones go back to it.
  * 
  * @Threadsafe, all fields are final
  */
@@ -37,26 +76,322 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** How long the page cleaner sleeps between rounds, in milliseconds. */
+    static final long CLEANER_INTERVAL = 50;
+
+    /** Number of pages the page cleaner writes back per hold of the buffer pool. */
+    static final int CLEANER_BATCH = 16;
+
+    /** the order pages are written back in, so writes to a file are sequential */
+    private static final Comparator<PageId> WRITE_ORDER =
+        Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber);
+
     /** Max number of pages in this buffer pool. */
     private int numPages;
 
-    /** All pages stored in this buffer pool. */
-    private Map<PageId, Page> pages; 
+    /** A buffer frame: the resident page and the number of pins on it. */
+    private static class Frame {
+        /** null while the frame is free */
+        Page page;
+        int pinCount;
+        /** whether the replacement policy may choose this frame */
+        boolean evictable;
+        /**
+         * whether committed changes to the page are not on disk yet; the
+         * page's before-image then holds the last committed state
+         */
+        boolean unflushed;
+        /**
+         * the page data the page's last UPDATE record left it in, if that is
+         * not the before-image: the page was written back with changes not
+         * committed yet. The next record of the page is a delta from it; the
+         * before-image stays the last committed state. null otherwise.
+         */
+        byte[] logged;
+        /**
+         * LSN of the log record holding the page's last logged image; the
+         * log must be durable up to it before that image is written back
+         */
+        long lsn;
+        /**
+         * LSN from which the log may hold changes to the page that are not
+         * on disk, or -1 if there are none; see getDirtyPageTable
+         */
+        long recLsn = -1;
+    }
+
+    /** A transaction's pins on one frame. */
+    private static class Pin {
+        final Frame frame;
+        int count;
+
+        Pin(Frame frame) {
+            this.frame = frame;
+        }
+    }
+
+    /** The frames of all pages stored in this buffer pool. */
+    private final Map<PageId, Frame> frames;
+
+    /** frames no page is using, guarded by this */
+    private final Deque<Frame> freeFrames;
+
+    /** number of frames handed out so far, at most numPages; guarded by this */
+    private int allocatedFrames;
+
+    /** the pins every transaction holds, by page */
+    private final Map<TransactionId, Map<PageId, Pin>> pins;
 
     /** all 2PL in the buffer pool */
     private LockManager lockManager;
+
+    /** chooses the page to evict when the buffer pool is full */
+    private final ReplacementPolicy replacementPolicy;
+
+    /** whether commit writes back the transaction's pages */
+    private volatile boolean force = true;
+
+    /** whether dirty pages may be evicted before their transaction completes */
+    private volatile boolean steal = false;
+
+    /** the page cleaner thread in NO-FORCE mode, null otherwise; guarded by this */
+    private Thread cleaner = null;
+
+    /** whether reads take no locks and see the snapshot of their transaction */
+    private volatile boolean snapshotIsolation = false;
+
+    /** whether heap page writers lock records instead of pages */
+    private volatile boolean recordLocking = false;
+
+    /** the timestamp of the last commit that changed a page; guarded by this */
+    private long commitClock = 0;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * the start timestamp of each running transaction in snapshot isolation
+     * mode; a transaction is added under this monitor
+     */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+
+    /**
+     * the timestamp of the last commit of each page changed since the oldest
+     * running snapshot started; written under the page's frame monitor
+     */
+    private final Map<PageId, Long> commitTimes = new ConcurrentHashMap<PageId, Long>();
+
+    /**
+     * the committed images replaced since the oldest running snapshot
+     * started, newest first; guarded by this
+     */
+    private final Map<PageId, Deque<Version>> versions = new HashMap<PageId, Deque<Version>>();
+
+    /** A committed image of a page, kept for the snapshots that read it. */
+    private static class Version {
+        final Page image;
+        /** the timestamp of the commit that wrote the image */
+        final long commitTs;
+
+        Version(Page image, long commitTs) {
+            this.image = image;
+            this.commitTs = commitTs;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using LRU
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // some code goes here
+        this(numPages, new LRUReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacementPolicy the policy choosing which page to evict
+     * @see LRUReplacementPolicy
+     * @see ClockReplacementPolicy
+     * @see LRUKReplacementPolicy
+     * @see TwoQueueReplacementPolicy
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
         this.numPages = numPages;
-        this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.frames = new ConcurrentHashMap<PageId, Frame>();
+        this.freeFrames = new ArrayDeque<Frame>();
+        this.allocatedFrames = 0;
+        this.pins = new ConcurrentHashMap<TransactionId, Map<PageId, Pin>>();
         this.lockManager = new LockManager();
+        this.replacementPolicy = replacementPolicy;
     }
     
+    /** Returns the maximum number of pages in this buffer pool. */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** Returns the lock manager of this buffer pool, e.g. to tune its deadlock handling. */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /**
+     * Switch between FORCE and NO-FORCE commit. In NO-FORCE mode commit
+     * appends the update records of the transaction's pages to the log but
+     * writes no page, and a daemon thread writes committed pages back in page
+     * number order. Switching back to FORCE stops the thread and writes back
+     * what it left.
+     */
+    public synchronized void setForce(boolean force) {
+        this.force = force;
+        if (!force && this.cleaner == null){
+            this.cleaner = new Thread(this::runCleaner, "page-cleaner");
+            this.cleaner.setDaemon(true);
+            this.cleaner.start();
+        }
+        else if (force && this.cleaner != null){
+            // the thread notices and stops after its current round
+            this.cleaner = null;
+            try {
+                cleanPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Switch between NO STEAL and STEAL eviction. In STEAL mode a dirty page
+     * may be evicted when no clean page can be: its update record is logged
+     * and forced first, and the page written back.
+     * An aborting transaction is then rolled back from the log, as is an
+     * uncommitted one by recovery. The log can only roll back transactions
+     * that logged their BEGIN record, started with
+     * {@link simpledb.transaction.Transaction#start()}, so the pages of any
+     * other transaction are never stolen: it cannot write more pages than
+     * the buffer pool holds.
+     */
+    public synchronized void setSteal(boolean steal) {
+        if (steal && this.snapshotIsolation){
+            throw new IllegalStateException("snapshot isolation needs NO STEAL");
+        }
+        if (steal && this.recordLocking){
+            throw new IllegalStateException("record locking needs NO STEAL");
+        }
+        this.steal = steal;
+        for (Map.Entry<PageId, Frame> e : this.frames.entrySet()){
+            synchronized (e.getValue()) {
+                updateEvictable(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Switch snapshot isolation on or off; only switch while no transaction
+     * runs. In snapshot isolation mode a page asked for READ_ONLY is locked
+     * by no one and may not be modified: it is the image the transaction's
+     * snapshot sees, or the current page if the transaction locked it
+     * exclusively already. A page asked for READ_WRITE is locked as usual,
+     * and the transaction aborts if another one committed the page since
+     * the snapshot was taken.
+     * <p>
+     * Snapshots are read from the last committed state of the pages, which
+     * writing back uncommitted pages overwrites, so the buffer pool must run
+     * NO STEAL.
+     */
+    public synchronized void setSnapshotIsolation(boolean snapshotIsolation) {
+        if (snapshotIsolation && this.steal){
+            throw new IllegalStateException("snapshot isolation needs NO STEAL");
+        }
+        if (snapshotIsolation && this.recordLocking){
+            throw new IllegalStateException("snapshot isolation locks pages, not records");
+        }
+        this.snapshotIsolation = snapshotIsolation;
+    }
+
+    /**
+     * Switch record locking on or off; only switch while no transaction
+     * runs. In record locking mode a heap page asked for READ_WRITE is only
+     * locked INTENTION_EXCLUSIVE: the caller locks the records it changes
+     * with {@link #lockRecord} before changing them, holding the page's
+     * monitor while it does. Readers lock heap pages SHARED as before, and
+     * other pages are locked as before too.
+     * <p>
+     * A page then holds the uncommitted changes of several transactions,
+     * and writing it back would write them all, so the buffer pool must run
+     * NO STEAL.
+     */
+    public synchronized void setRecordLocking(boolean recordLocking) {
+        if (recordLocking && this.steal){
+            throw new IllegalStateException("record locking needs NO STEAL");
+        }
+        if (recordLocking && this.snapshotIsolation){
+            throw new IllegalStateException("snapshot isolation locks pages, not records");
+        }
+        this.recordLocking = recordLocking;
+    }
+
+    /** Returns whether heap page writers lock records instead of pages. */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Lock a record of a heap page on behalf of a transaction, and its page
+     * and table with the matching intention lock. May block.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the ID of the record to lock
+     * @param perm READ_WRITE to change the record
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.getRecordLock(tid, rid, getLockType(perm));
+    }
+
+    /**
+     * Stop the page cleaner, if it runs, and wait for it to finish its
+     * current round. Unlike {@link #setForce}, pages it left are not written
+     * back: the database calls this when it drops the buffer pool.
+     */
+    public void stopCleaner() {
+        final Thread t;
+        synchronized (this) {
+            t = this.cleaner;
+            this.cleaner = null;
+        }
+        if (t == null) return;
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The page cleaner's loop. It stops when FORCE mode is back on or when the
+     * database has moved on to another buffer pool.
+     */
+    private void runCleaner() {
+        final Thread self = Thread.currentThread();
+        while (true){
+            synchronized (this) {
+                if (this.cleaner != self) return;
+            }
+            if (Database.getBufferPool() != this) return;
+            try {
+                Thread.sleep(CLEANER_INTERVAL);
+                cleanPages();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // the pages stay unflushed and are tried again next round
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -81,6 +416,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page stays pinned in the buffer pool until the transaction calls
+     * {@link #unpinPage} or completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -89,22 +427,225 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        lockManager.getLock(tid, pid, getLockType(perm));
-        Page requestedPage = null;
+        if (this.snapshotIsolation){
+            long start = snapshotOf(tid);
+            if (perm == Permissions.READ_ONLY && lockManager.holdsLock(tid, pid) != LockType.EXCLUSIVE){
+                return readSnapshot(tid, pid, start);
+            }
+            lockManager.getLock(tid, pid, getLockType(perm));
+            if (commitTimes.getOrDefault(pid, 0L) > start){
+                // first updater wins: the page changed after our snapshot
+                throw new TransactionAbortedException();
+            }
+        }
+        else if (this.recordLocking && perm == Permissions.READ_WRITE && pid instanceof HeapPageId){
+            // the records are locked as they are changed
+            lockManager.getLock(tid, pid, LockType.INTENTION_EXCLUSIVE);
+        }
+        else lockManager.getLock(tid, pid, getLockType(perm));
 
-        if (this.pages.containsKey(pid)){
-            requestedPage = this.pages.get(pid);
+        Frame frame = fetchFrame(tid, pid);
+        synchronized (frame) {
+            return frame.page;
         }
-        else{
-            if (this.pages.size() >= this.numPages){
-                evictPage();
+    }
+
+    /**
+     * Returns the frame of a page, reading the page in if it is not in the
+     * buffer pool, and pins it on behalf of the transaction.
+     */
+    private Frame fetchFrame(TransactionId tid, PageId pid) throws DbException {
+        Frame frame = this.frames.get(pid);
+        if (frame != null){
+            synchronized (frame) {
+                // the frame may have been evicted since the lookup
+                if (frame.page != null && this.frames.get(pid) == frame){
+                    replacementPolicy.pageAccessed(pid);
+                    pin(tid, pid, frame);
+                    return frame;
+                }
+            }
+        }
+
+        synchronized (this) {
+            // another thread may have read the page in the meantime
+            frame = this.frames.get(pid);
+            if (frame == null){
+                frame = allocateFrame();
+                // read page from disk
+                try {
+                    frame.page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                } catch (RuntimeException e) {
+                    this.freeFrames.push(frame);
+                    throw e;
+                }
+                frame.evictable = true;
+                this.frames.put(pid, frame);
+                replacementPolicy.pageAdmitted(pid);
+            }
+            else{
+                replacementPolicy.pageAccessed(pid);
+            }
+            synchronized (frame) {
+                pin(tid, pid, frame);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Returns the start timestamp of the transaction's snapshot, taking it
+     * if this is the transaction's first page. Commits change pages under
+     * this monitor, so the snapshot never sees half of one.
+     */
+    private long snapshotOf(TransactionId tid) {
+        Long start = this.snapshots.get(tid);
+        if (start != null) return start;
+        synchronized (this) {
+            return this.snapshots.computeIfAbsent(tid, t -> this.commitClock);
+        }
+    }
+
+    /**
+     * Returns the image of a page that a snapshot started at the given
+     * timestamp sees, without locking the page. The image is not pinned.
+     */
+    private Page readSnapshot(TransactionId tid, PageId pid, long start) throws DbException {
+        while (true){
+            Frame frame = fetchFrame(tid, pid);
+            try {
+                synchronized (frame) {
+                    // discarded since we pinned it, read it again
+                    if (frame.page == null) continue;
+                    // the last committed state, whatever the page's writer
+                    // has done to it since; a commit changes both under
+                    // this monitor
+                    if (commitTimes.getOrDefault(pid, 0L) <= start){
+                        return frame.page.getBeforeImage();
+                    }
+                }
+                synchronized (this) {
+                    Deque<Version> chain = this.versions.get(pid);
+                    if (chain != null){
+                        for (Version v : chain){
+                            if (v.commitTs <= start) return v.image;
+                        }
+                    }
+                }
+                throw new DbException("no version of page " + pid + " as of snapshot " + start);
+            } finally {
+                unpinPage(tid, pid);
+            }
+        }
+    }
+
+    /**
+     * Install pages read ahead of time, e.g. by a sequential scan that will
+     * ask for them shortly. Pages already in the buffer pool are skipped, and
+     * so are the remaining pages once no frame can be had without failing.
+     * Installed pages are not pinned and no lock is taken; the transaction
+     * that asks for them later locks them through {@link #getPage} as usual.
+     *
+     * @param pages the pages to install, as read from disk
+     * @param current tells whether the pages still match the disk; it is
+     *        asked while holding the buffer pool's monitor, under which
+     *        pages are written back
+     * @return the number of pages installed
+     */
+    public synchronized int prefetchPages(List<Page> pages, BooleanSupplier current) {
+        if (!current.getAsBoolean()) return 0;
+        int installed = 0;
+        for (Page page : pages){
+            PageId pid = page.getId();
+            if (this.frames.containsKey(pid)) continue;
+            Frame frame;
+            try {
+                frame = allocateFrame();
+            } catch (DbException e) {
+                // everything is pinned or dirty, read-ahead is only a hint
+                break;
+            }
+            frame.page = page;
+            frame.evictable = true;
+            this.frames.put(pid, frame);
+            replacementPolicy.pageAdmitted(pid);
+            installed++;
+        }
+        return installed;
+    }
+
+    /**
+     * Give up one pin the transaction holds on the page, taken by an earlier
+     * call to {@link #getPage}. Once no transaction pins the page it may be
+     * evicted again. Does nothing if the transaction holds no pin on the page.
+     * <p>
+     * Unpinning does not release the transaction's lock on the page.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Map<PageId, Pin> held = this.pins.get(tid);
+        if (held == null) return;
+        Pin pin;
+        synchronized (held) {
+            pin = held.get(pid);
+            if (pin == null) return;
+            if (--pin.count == 0) held.remove(pid);
+        }
+        synchronized (pin.frame) {
+            pin.frame.pinCount--;
+            updateEvictable(pid, pin.frame);
+        }
+    }
+
+    /**
+     * Pin a resident frame on behalf of a transaction.
+     * The caller must hold the frame's monitor.
+     */
+    private void pin(TransactionId tid, PageId pid, Frame frame) {
+        Map<PageId, Pin> held = this.pins.computeIfAbsent(tid, t -> new HashMap<PageId, Pin>());
+        synchronized (held) {
+            Pin pin = held.get(pid);
+            if (pin == null || pin.frame != frame){
+                // a pin on an older frame of this page stays with that frame
+                pin = new Pin(frame);
+                held.put(pid, pin);
             }
-            // read page from disk
-            requestedPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            this.pages.put(pid, requestedPage);
-        } 
+            pin.count++;
+        }
+        frame.pinCount++;
+        updateEvictable(pid, frame);
+    }
+
+    /**
+     * Withdraw a frame from or return it to the replacement policy's
+     * candidates. Pinned frames are never evicted, and neither are dirty
+     * ones unless we run STEAL. The caller must hold the frame's monitor.
+     */
+    private void updateEvictable(PageId pid, Frame frame) {
+        if (frame.page == null || this.frames.get(pid) != frame) return;
+        boolean evictable = frame.pinCount == 0
+            && (this.steal || (frame.page.isDirty() == null && frame.logged == null));
+        if (evictable != frame.evictable){
+            frame.evictable = evictable;
+            replacementPolicy.setEvictable(pid, evictable);
+        }
+    }
 
-        return requestedPage;
+    /**
+     * Take a frame from the free list, make a new one while fewer than
+     * numPages exist, or else evict a page to free its frame.
+     */
+    private synchronized Frame allocateFrame() throws DbException {
+        if (this.freeFrames.isEmpty()){
+            if (this.allocatedFrames < this.numPages){
+                this.allocatedFrames++;
+                return new Frame();
+            }
+            evictPage();
+        }
+        return this.freeFrames.pop();
     }
 
     /**
@@ -151,31 +692,314 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
 
-        for(PageId pid : pages.keySet()){
-            synchronized(pid) {
-                if((lockManager.holdsLock(tid, pid) == LockType.EXCLUSIVE)){
-                    // commit success, flush the dirty page
-                    if(commit) {
-                        try {
-                            this.flushPage(pid);
-                            // use current page contents as the before-image
-                            // for the next transaction that modifies this page.
-                            pages.get(pid).setBeforeImage();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+        // unpinned frames of discarded pages go back to the free list
+        releasePins(tid);
+        // the pages the transaction may have dirtied, found before taking the
+        // buffer pool's monitor: the lock manager synchronizes on each page's
+        // locks, which come first
+        List<PageId> locked = lockManager.lockedPages(tid, LockType.INTENTION_EXCLUSIVE);
+        // and the records it may have changed on the pages it shares
+        Map<PageId, List<Integer>> records = new HashMap<PageId, List<Integer>>();
+        if(this.recordLocking){
+            for(PageId pid : locked){
+                if(lockManager.holdsLock(tid, pid) == LockType.EXCLUSIVE) continue;
+                records.put(pid, slotsOf(lockManager.lockedRecords(tid, pid, LockType.EXCLUSIVE)));
+            }
+        }
+        if(commit) {
+            try {
+                this.commitPages(tid, locked, records);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        else {
+            if(this.steal){
+                // pages written back early hold the transaction's changes on
+                // disk; does nothing if the log has rolled it back already
+                try {
+                    Database.getLogFile().rollback(tid);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for(PageId pid : locked){
+                try {
+                    if(records.containsKey(pid)) this.abortRecords(tid, pid, records.get(pid));
+                    else this.abortPage(tid, pid);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        lockManager.releaseAllLock(tid);
+        if(this.snapshots.remove(tid) != null){
+            pruneVersions();
+        }
+    }
+
+    /**
+     * Log the pages a committing transaction dirtied among those it locked
+     * exclusively, then write them back
+     * in FORCE mode or leave them to the page cleaner in NO-FORCE mode. The
+     * log is forced once for all pages, and not at all in NO-FORCE mode: the
+     * commit record forces it.
+     * <p>
+     * In snapshot isolation mode the pages get a new commit timestamp, and
+     * the images they replace go to the version chains if a running
+     * snapshot may read them.
+     * <p>
+     * Of a page the transaction only locked records of, only the changes to
+     * those records are committed; the page stays dirty while it holds
+     * other transactions' changes.
+     *
+     * @param records the records changed on such pages, by page
+     */
+    private synchronized void commitPages(TransactionId tid, List<PageId> locked,
+            Map<PageId, List<Integer>> records) throws IOException {
+        List<PageId> dirtied = new ArrayList<PageId>();
+        long commitTs = 0;
+        boolean keep = false;
+        for(PageId pid : locked){
+            Frame frame = frames.get(pid);
+            if(frame == null) continue;
+            synchronized (frame) {
+                Page p = frame.page;
+                List<Integer> slots = records.get(pid);
+                if(slots != null){
+                    HeapPage hp = (HeapPage) p;
+                    // the transaction's records, on top of the last logged image
+                    byte[] before = lastLogged(frame);
+                    HeapPage image = new HeapPage((HeapPageId) pid, before);
+                    image.takeSlots(hp, slots);
+                    byte[] after = image.getPageData();
+                    if(!Arrays.equals(before, after)){
+                        if(frame.recLsn < 0) frame.recLsn = Database.getLogFile().getEndLsn();
+                        frame.lsn = Database.getLogFile().logWrite(tid, pid, before, after);
+                        frame.unflushed = true;
                     }
-                    // discard current page state
-                    // if other transaction access the page in the future
-                    // it need to read it from disk
-                    else {
-                        this.discardPage(pid);
+                    hp.setBeforeImage(slots);
+                    if(frame.logged != null){
+                        frame.logged = Arrays.equals(after, hp.getBeforeImage().getPageData()) ? null : after;
                     }
+                    if(hp.matchesBeforeImage()) hp.markDirty(false, null);
+                    updateEvictable(pid, frame);
+                    if(frame.unflushed) dirtied.add(pid);
+                    continue;
+                }
+                TransactionId dirtier = p.isDirty();
+                if(dirtier != null){
+                    if(frame.recLsn < 0) frame.recLsn = Database.getLogFile().getEndLsn();
+                    frame.lsn = Database.getLogFile().logWrite(dirtier, pid, lastLogged(frame), p.getPageData());
                 }
+                // a page written back before the commit has changed as well
+                if(dirtier != null || frame.logged != null){
+                    if(this.snapshotIsolation){
+                        if(commitTs == 0){
+                            commitTs = ++this.commitClock;
+                            keep = oldestSnapshot() < commitTs;
+                        }
+                        if(keep){
+                            this.versions.computeIfAbsent(pid, k -> new ArrayDeque<Version>())
+                                .addFirst(new Version(p.getBeforeImage(), commitTimes.getOrDefault(pid, 0L)));
+                        }
+                        commitTimes.put(pid, commitTs);
+                    }
+                }
+                if(dirtier != null){
+                    p.markDirty(false, null);
+                    frame.unflushed = true;
+                }
+                // use current page contents as the before-image
+                // for the next transaction that modifies this page.
+                p.setBeforeImage();
+                frame.logged = null;
+                updateEvictable(pid, frame);
+                if(frame.unflushed) dirtied.add(pid);
+            }
+        }
+        if(this.force){
+            dirtied.sort(WRITE_ORDER);
+            writeBack(dirtied);
+        }
+    }
+
+    /**
+     * @return the start timestamp of the oldest running snapshot, or
+     * Long.MAX_VALUE if none runs. The caller holds this monitor.
+     */
+    private long oldestSnapshot() {
+        long oldest = Long.MAX_VALUE;
+        for(long start : this.snapshots.values()){
+            oldest = Math.min(oldest, start);
+        }
+        return oldest;
+    }
+
+    /**
+     * Drop the page images that no running snapshot reads any more: all
+     * images of a page last committed before the oldest snapshot started,
+     * and otherwise those older than the one that snapshot reads.
+     */
+    private synchronized void pruneVersions() {
+        long oldest = oldestSnapshot();
+        Iterator<Map.Entry<PageId, Deque<Version>>> chains = this.versions.entrySet().iterator();
+        while(chains.hasNext()){
+            Map.Entry<PageId, Deque<Version>> e = chains.next();
+            if(commitTimes.getOrDefault(e.getKey(), 0L) <= oldest){
+                chains.remove();
+                continue;
+            }
+            boolean read = false;
+            for(Iterator<Version> vs = e.getValue().iterator(); vs.hasNext();){
+                Version v = vs.next();
+                if(read) vs.remove();
+                else if(v.commitTs <= oldest) read = true;
+            }
+        }
+        // every snapshot sees these commits, none can conflict with them
+        commitTimes.values().removeIf(ts -> ts <= oldest);
+    }
+
+    /**
+     * Undo an aborted transaction's changes to a page it locked exclusively.
+     * Normally the page is dropped and read again from disk; if the disk
+     * lacks committed changes, or holds the aborted ones, the page goes back
+     * to its before-image instead. In the latter case the undo is logged and
+     * the page written back like a committed change.
+     */
+    private synchronized void abortPage(TransactionId tid, PageId pid) throws IOException {
+        Frame frame = frames.get(pid);
+        if(frame != null){
+            synchronized (frame) {
+                if(frame.logged != null){
+                    if(frame.recLsn < 0) frame.recLsn = Database.getLogFile().getEndLsn();
+                    byte[] before = frame.page.getBeforeImage().getPageData();
+                    frame.lsn = Database.getLogFile().logWrite(tid, pid, frame.logged, before);
+                    frame.logged = null;
+                    frame.unflushed = true;
+                }
+                if(frame.unflushed){
+                    frame.page = frame.page.getBeforeImage();
+                    updateEvictable(pid, frame);
+                    return;
+                }
+            }
+        }
+        // discard current page state
+        // if other transaction access the page in the future
+        // it need to read it from disk
+        this.discardPage(pid);
+    }
+
+    /**
+     * Undo an aborted transaction's changes to the records of a page other
+     * transactions may have changed too: the records go back to the page's
+     * before-image, and the page stays in the buffer pool. If the page was
+     * written back with the records changed, their undo is logged too.
+     */
+    private synchronized void abortRecords(TransactionId tid, PageId pid, List<Integer> slots)
+            throws IOException {
+        Frame frame = frames.get(pid);
+        if(frame == null) return;
+        synchronized (frame) {
+            HeapPage hp = (HeapPage) frame.page;
+            if(frame.logged != null){
+                HeapPage image = new HeapPage((HeapPageId) pid, frame.logged);
+                image.takeSlots(hp.getBeforeImage(), slots);
+                byte[] after = image.getPageData();
+                if(!Arrays.equals(frame.logged, after)){
+                    if(frame.recLsn < 0) frame.recLsn = Database.getLogFile().getEndLsn();
+                    frame.lsn = Database.getLogFile().logWrite(tid, pid, frame.logged, after);
+                    frame.unflushed = true;
+                }
+                frame.logged = Arrays.equals(after, hp.getBeforeImage().getPageData()) ? null : after;
+            }
+            hp.restoreSlots(slots);
+            if(hp.matchesBeforeImage()) hp.markDirty(false, null);
+            updateEvictable(pid, frame);
+        }
+    }
+
+    /**
+     * Write back, in page number order, every page holding committed changes
+     * that are not on disk yet. The page cleaner calls this in NO-FORCE mode;
+     * it holds the buffer pool for a batch of pages at a time only.
+     *
+     * @return the number of pages written
+     */
+    public int cleanPages() throws IOException {
+        List<PageId> pids = new ArrayList<PageId>();
+        for(Map.Entry<PageId, Frame> e : frames.entrySet()){
+            synchronized (e.getValue()) {
+                if(e.getValue().unflushed) pids.add(e.getKey());
+            }
+        }
+        pids.sort(WRITE_ORDER);
+        int written = 0;
+        for(int i = 0; i < pids.size(); i += CLEANER_BATCH){
+            written += writeBack(pids.subList(i, Math.min(i + CLEANER_BATCH, pids.size())));
+        }
+        return written;
+    }
+
+    /**
+     * Write back the committed state of those of the given pages that are
+     * unflushed, after forcing the log that describes it.
+     *
+     * @return the number of pages written
+     */
+    private synchronized int writeBack(List<PageId> pids) throws IOException {
+        List<PageId> written = new ArrayList<PageId>(pids.size());
+        List<byte[]> images = new ArrayList<byte[]>(pids.size());
+        long lsn = 0;
+        for(PageId pid : pids){
+            Frame frame = frames.get(pid);
+            if(frame == null) continue;
+            synchronized (frame) {
+                if(!frame.unflushed) continue;
+                // the last committed state, whatever a transaction
+                // holding the page has done to it since, or the last
+                // logged image if the page was written back with more
+                written.add(pid);
+                images.add(lastLogged(frame));
+                lsn = Math.max(lsn, frame.lsn);
+            }
+        }
+        if(images.isEmpty()) return 0;
+        // write-ahead: usually the commit records forced the log past
+        // these pages' records already
+        Database.getLogFile().force(lsn);
+        for(int i = 0; i < written.size(); i++){
+            PageId pid = written.get(i);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePageBytes(pid, 0, images.get(i));
+            // commit also takes this monitor, so nothing changed meanwhile
+            Frame frame = frames.get(pid);
+            synchronized (frame) {
+                frame.unflushed = false;
+                frame.recLsn = -1;
+            }
+        }
+        return images.size();
+    }
+
+    /**
+     * Drop every pin the transaction still holds.
+     */
+    private void releasePins(TransactionId tid) {
+        Map<PageId, Pin> held = this.pins.remove(tid);
+        if (held == null) return;
+        List<Map.Entry<PageId, Pin>> entries;
+        synchronized (held) {
+            entries = new ArrayList<Map.Entry<PageId, Pin>>(held.entrySet());
+        }
+        for (Map.Entry<PageId, Pin> e : entries){
+            Frame frame = e.getValue().frame;
+            synchronized (frame) {
+                frame.pinCount -= e.getValue().count;
+                updateEvictable(e.getKey(), frame);
             }
         }
-        lockManager.releaseAllLock(tid);
-        //lockManager.removeAllDependency(tid);
     }
 
     /**
@@ -189,6 +1013,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * Adds the entries of the tuple to the secondary indexes on the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -201,9 +1027,15 @@ public class BufferPool {
         // exclusive lock is acquired here
         List<Page> dirties = file.insertTuple(tid, t);
 
-        // update pages in buffer
+        // update pages in buffer, the file pinned them for us
         for(Page p : dirties){
             updatePage(p, tid);
+            unpinPage(tid, p.getId());
+        }
+
+        // point the secondary indexes to the tuple's new record id
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            index.insertTuple(tid, t);
         }
     }
 
@@ -217,6 +1049,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * Removes the entries of the tuple from the secondary indexes on the table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -226,12 +1060,18 @@ public class BufferPool {
         // not necessary for lab1
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        RecordId rid = t.getRecordId();
         // exclusive lock is acquired here
         List<Page> dirties = file.deleteTuple(tid, t);
 
-        // update pages in buffer
+        // update pages in buffer, the file pinned them for us
         for(Page p : dirties){
             updatePage(p, tid);
+            unpinPage(tid, p.getId());
+        }
+
+        for(SecondaryIndex index : Database.getCatalog().getIndexes(tableId)){
+            index.deleteTuple(tid, t, rid);
         }
     }
 
@@ -242,18 +1082,33 @@ public class BufferPool {
      * @param page the page to be updated
      * @param tid the transaction updating the page
      */
-    private void updatePage(Page page, TransactionId tid){
+    private synchronized void updatePage(Page page, TransactionId tid){
         PageId pid = page.getId();
         page.markDirty(true, tid);
 
-        if(!pages.containsKey(pid) && (pages.size() >= this.numPages)){
+        Frame frame = frames.get(pid);
+        if(frame != null){
+            replacementPolicy.pageAccessed(pid);
+        }
+        else{
             try {
-                evictPage();
-            } catch (Exception e) {
+                frame = allocateFrame();
+            } catch (DbException e) {
+                // never lose a dirty page; the pool shrinks back to
+                // numPages as frames are freed
                 e.printStackTrace();
+                allocatedFrames++;
+                frame = new Frame();
             }
+            frame.page = page;
+            frame.evictable = true;
+            frames.put(pid, frame);
+            replacementPolicy.pageAdmitted(pid);
+        }
+        synchronized(frame){
+            frame.page = page;
+            updateEvictable(pid, frame);
         }
-        pages.put(pid, page);
     }
 
     /**
@@ -264,7 +1119,7 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pid : pages.keySet()){
+        for(PageId pid : frames.keySet()){
             flushPage(pid);
         }
     }
@@ -283,7 +1138,22 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        this.pages.remove(pid);
+        Frame frame = this.frames.remove(pid);
+        if(frame == null) return;
+        replacementPolicy.pageRemoved(pid);
+        synchronized(frame){
+            frame.page = null;
+            frame.evictable = false;
+            frame.logged = null;
+            frame.lsn = 0;
+            frame.recLsn = -1;
+            // a frame still pinned through a stale pin, or one beyond
+            // numPages, is left to the garbage collector
+            if(frame.pinCount == 0 && this.allocatedFrames <= this.numPages){
+                this.freeFrames.push(frame);
+            }
+            else this.allocatedFrames--;
+        }
     }
 
     /**
@@ -294,17 +1164,99 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
 
-        // append an update record to the log, with 
-        // a before-image and after-image.
-        Page p = pages.get(pid);
+        // append an update record to the log, with the
+        // changes since the before-image.
+        Frame frame = frames.get(pid);
+        if (frame == null) return;
+        Page p = frame.page;
         TransactionId dirtier = p.isDirty();
         if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-            Database.getLogFile().force();
+            // a checkpoint taken before the page is written must see it
+            synchronized (frame) {
+                if (frame.recLsn < 0) frame.recLsn = Database.getLogFile().getEndLsn();
+            }
+            // the next record of the page is a delta from this one; the
+            // before-image stays the last committed state
+            logChanges(pid, frame, dirtier);
         }
+        // write-ahead, by LSN: a clean page only needs its last record
+        Database.getLogFile().force(frame.lsn);
 
         DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        table.writePage(pages.get(pid));
+        table.writePage(p);
+        // the page now matches the disk and may be evicted
+        synchronized (frame) {
+            frame.unflushed = false;
+            frame.recLsn = -1;
+            p.markDirty(false, null);
+            updateEvictable(pid, frame);
+        }
+    }
+
+    /**
+     * Log the changes to a page since its last logged image, and make the
+     * page as it is now its last logged image. On a page other transactions
+     * hold records of, each transaction's records are logged under it; the
+     * rest of the changes go under the transaction that dirtied the page.
+     */
+    private void logChanges(PageId pid, Frame frame, TransactionId dirtier) throws IOException {
+        LogFile log = Database.getLogFile();
+        Page p = frame.page;
+        byte[] before = lastLogged(frame);
+        boolean logged = false;
+        if(this.recordLocking && p instanceof HeapPage
+                && lockManager.holdsLock(dirtier, pid) != LockType.EXCLUSIVE){
+            Map<TransactionId, List<RecordId>> lockers = lockManager.recordLockers(pid, LockType.EXCLUSIVE);
+            for(Map.Entry<TransactionId, List<RecordId>> e : lockers.entrySet()){
+                HeapPage image = new HeapPage((HeapPageId) pid, before);
+                image.takeSlots((HeapPage) p, slotsOf(e.getValue()));
+                byte[] after = image.getPageData();
+                if(!Arrays.equals(before, after)){
+                    frame.lsn = log.logWrite(e.getKey(), pid, before, after);
+                    before = after;
+                    logged = true;
+                }
+            }
+        }
+        byte[] after = p.getPageData();
+        if(!logged || !Arrays.equals(before, after)){
+            frame.lsn = log.logWrite(dirtier, pid, before, after);
+        }
+        frame.logged = after;
+    }
+
+    /**
+     * @return the image the next UPDATE record of the frame's page is a
+     * delta from. The caller holds the frame's monitor or the buffer pool's.
+     */
+    private static byte[] lastLogged(Frame frame) {
+        return frame.logged != null ? frame.logged : frame.page.getBeforeImage().getPageData();
+    }
+
+    /** @return the slots of the records */
+    private static List<Integer> slotsOf(List<RecordId> rids) {
+        List<Integer> slots = new ArrayList<Integer>(rids.size());
+        for(RecordId rid : rids){
+            slots.add(rid.getTupleNumber());
+        }
+        return slots;
+    }
+
+    /**
+     * Returns the dirty page table for a checkpoint: each page whose logged
+     * changes may not all be on disk, with the LSN of the first record that
+     * recovery must redo for it. Only the frames are locked, one at a time,
+     * so the table may be stale by the time it is returned; pages logged
+     * meanwhile are covered by redoing from the checkpoint's start.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+        for(Map.Entry<PageId, Frame> e : frames.entrySet()){
+            synchronized (e.getValue()) {
+                if(e.getValue().recLsn >= 0) dirtyPages.put(e.getKey(), e.getValue().recLsn);
+            }
+        }
+        return dirtyPages;
     }
 
     /** 
@@ -313,40 +1265,72 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for(PageId pid : pages.keySet()){
-            if((lockManager.holdsLock(tid, pid) == LockType.EXCLUSIVE) && (pages.get(pid).isDirty() != null)){
+        for(PageId pid : lockManager.lockedPages(tid, LockType.EXCLUSIVE)){
+            Frame frame = frames.get(pid);
+            if(frame != null && frame.page != null && frame.page.isDirty() != null){
                 this.flushPage(pid);
             }
         }
-
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool and puts its frame on the free list.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
-     * <p> Implement NO STEAL stragegy
+     * <p> Implement NO STEAL stragegy: the replacement policy picks the
+     * victim among the unpinned clean pages only. A victim whose committed
+     * changes are not on disk yet is written back first.
+     * <p> In STEAL mode clean pages are still preferred, but an unpinned
+     * dirty page is flushed, after its update record, and evicted if there
+     * is no other choice, provided the log can roll its dirtier back.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
+        while(true){
+            // pinned and dirty frames are withdrawn from the policy's
+            // candidates; the test only catches pages dirtied in place
+            // since they were last handed to updatePage
+            PageId evictedPid = replacementPolicy.chooseVictim(pid -> {
+                Frame f = frames.get(pid);
+                Page p = f == null ? null : f.page;
+                return p != null && p.isDirty() == null && f.logged == null;
+            });
 
-        // randomly choose a not dirty page to evict
-        // if all pages are dirty, throw exception
-        PageId evictedPid = null;
-        boolean isDirty = true;
-
-        for(PageId pid : this.pages.keySet()){
-            if(pages.get(pid).isDirty() == null){
-                evictedPid = pid;
-                isDirty = false;
-                break;
+            if(evictedPid == null && this.steal){
+                // only pages the log can roll back if their dirtier aborts
+                evictedPid = replacementPolicy.chooseVictim(pid -> {
+                    Frame f = frames.get(pid);
+                    Page p = f == null ? null : f.page;
+                    if (p == null) return false;
+                    TransactionId dirtier = p.isDirty();
+                    return dirtier == null || Database.getLogFile().isActive(dirtier);
+                });
             }
-        }
 
-        if(isDirty){
-            throw new DbException("All pages in buffer are dirty");
+            // if all pages are pinned or dirty, throw exception
+            if(evictedPid == null){
+                throw new DbException("All pages in buffer are pinned or dirty");
+            }
+            Frame frame = frames.get(evictedPid);
+            synchronized(frame){
+                try {
+                    if(frame.pinCount == 0 && frame.page.isDirty() != null){
+                        // logs the page's changes and forces the log first
+                        flushPage(evictedPid);
+                    }
+                    else if(frame.unflushed && frame.pinCount == 0){
+                        writeBack(Collections.singletonList(evictedPid));
+                    }
+                } catch (IOException e) {
+                    throw new DbException("Unable to write back page " + evictedPid + ": " + e);
+                }
+                // a transaction may have pinned the page since it was chosen
+                if(frame.pinCount == 0){
+                    discardPage(evictedPid);
+                    return;
+                }
+            }
         }
-        else discardPage(evictedPid);
     }
 
     private static LockType getLockType(Permissions perm){
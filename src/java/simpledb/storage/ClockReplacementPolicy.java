@@ -0,0 +1,114 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement: resident pages sit on a circular list
+ * with a reference bit. The hand sweeps the list, clearing set bits, and
+ * evicts the first page whose bit is already clear. An approximation of LRU
+ * that only does constant work per access. Pages that may not be evicted are
+ * taken off the clock face until they are released.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    /** the clock face; null marks a slot freed by a removed page */
+    private final List<PageId> ring;
+    /** page id -> position on the clock face */
+    private final Map<PageId, Integer> slots;
+    /** reference bits, indexed by position */
+    private final BitSet referenced;
+    /** positions freed by removed pages, reused by new pages */
+    private final Deque<Integer> holes;
+    /** resident pages that may not be evicted for now */
+    private final Set<PageId> held;
+    private int hand;
+
+    public ClockReplacementPolicy() {
+        this.ring = new ArrayList<PageId>();
+        this.slots = new HashMap<PageId, Integer>();
+        this.referenced = new BitSet();
+        this.holes = new ArrayDeque<Integer>();
+        this.held = new HashSet<PageId>();
+        this.hand = 0;
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if(held.contains(pid)) return;
+        Integer slot = slots.get(pid);
+        if(slot == null){
+            if(holes.isEmpty()){
+                slot = ring.size();
+                ring.add(pid);
+            }
+            else{
+                slot = holes.pop();
+                ring.set(slot, pid);
+            }
+            slots.put(pid, slot);
+        }
+        referenced.set(slot);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer slot = slots.get(pid);
+        if(slot == null) pageAdmitted(pid);
+        else referenced.set(slot);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        held.remove(pid);
+        takeOff(pid);
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        if(evictable){
+            // back on the clock face with its reference bit set
+            if(held.remove(pid)) pageAdmitted(pid);
+        }
+        else if(takeOff(pid)){
+            held.add(pid);
+        }
+    }
+
+    /**
+     * Remove a page from the clock face.
+     * @return true if the page was on the clock face
+     */
+    private boolean takeOff(PageId pid) {
+        Integer slot = slots.remove(pid);
+        if(slot == null) return false;
+        ring.set(slot, null);
+        referenced.clear(slot);
+        holes.push(slot);
+        return true;
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        final int size = ring.size();
+        // two full turns: the first may only clear reference bits
+        for(int step = 0; step < 2 * size; step++){
+            if(hand >= size) hand = 0;
+            final int slot = hand++;
+            final PageId pid = ring.get(slot);
+            if(pid == null || !canEvict.test(pid)) continue;
+
+            if(referenced.get(slot)){
+                // second chance
+                referenced.clear(slot);
+            }
+            else{
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -33,6 +33,19 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Write bytes straight into a page on disk, without going through a
+     * Page: recovery applies the logged changes of a page this way. If the
+     * file ends before the page does, it is first extended with zeros to
+     * hold the whole page.
+     *
+     * @param pid the page to write into
+     * @param offset the offset of the bytes from the start of the page
+     * @param data the bytes to write
+     * @throws IOException if the write fails
+     */
+    void writePageBytes(PageId pid, int offset, byte[] data) throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -99,4 +112,13 @@ public interface DbFile {
      * @return the number of pages in the file.
      */
     int numPages();
+
+    /**
+     * Release the file handles this file keeps open. The file stays usable
+     * and reopens them when it is next read or written.
+     *
+     * @see Catalog#clear()
+     */
+    default void close() {
+    }
 }
@@ -0,0 +1,199 @@
+package simpledb.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The FileChannel of a DbFile, opened on first use and kept open until
+ * {@link #close()}. Reads and writes are positional, so any number of threads
+ * can use the channel at once without seeking.
+ * <p>
+ * A channel is closed for everybody when a thread using it is interrupted.
+ * Other threads then reopen it transparently; so does the next use after
+ * {@link #close()}.
+ * <p>
+ * The file can also be read through memory mappings, see
+ * {@link #map(long, int)}.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel {
+
+    /** Size of the regions the file is mapped in, a multiple of any sane page size. */
+    static final int MAP_REGION_SIZE = 1 << 24;
+
+    private final File file;
+    private volatile FileChannel channel;
+    /** read-only mappings of the file, by region number */
+    private final Map<Long, MappedByteBuffer> regions = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+    /**
+     * @param file the file to read and write; it is not opened yet
+     */
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read up to data.length bytes starting at the given position.
+     *
+     * @return the number of bytes read, less than data.length only if the
+     *         end of the file was reached; -1 if position is past the end
+     */
+    public int read(byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            int n = read(buf, position + buf.position());
+            if (n < 0) break;
+        }
+        if (buf.position() == 0 && data.length > 0) return -1;
+        return buf.position();
+    }
+
+    /**
+     * Write all of data starting at the given position, extending the file
+     * if needed.
+     */
+    public void write(byte[] data, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            write(buf, position + buf.position());
+        }
+    }
+
+    /**
+     * Append data at the end of the file. Concurrent appends do not overlap.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        long position = size();
+        write(data, position);
+        return position;
+    }
+
+    /**
+     * Returns a read-only view of length bytes of the file starting at
+     * position, backed by a memory mapping of the file. Since the mapping is
+     * shared, the view reflects later writes to the file.
+     *
+     * @throws EOFException if the file ends before position + length
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        final long region = position / MAP_REGION_SIZE;
+        final int offset = (int) (position - region * MAP_REGION_SIZE);
+        if (offset + length > MAP_REGION_SIZE) {
+            // spans two regions, only happens with odd page sizes
+            byte[] data = new byte[length];
+            if (read(data, position) < length) throw new EOFException();
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+
+        MappedByteBuffer mapping = regions.get(region);
+        if (mapping == null || mapping.capacity() < offset + length) {
+            synchronized (this) {
+                mapping = regions.get(region);
+                if (mapping == null || mapping.capacity() < offset + length) {
+                    // the file may have grown since the region was mapped
+                    final long start = region * MAP_REGION_SIZE;
+                    final long end = Math.min(start + MAP_REGION_SIZE, size());
+                    if (end < position + length) throw new EOFException();
+                    mapping = channel().map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    regions.put(region, mapping);
+                }
+            }
+        }
+
+        ByteBuffer view = mapping.duplicate();
+        view.position(offset).limit(offset + length);
+        return view.slice();
+    }
+
+    /** Returns the current size of the file in bytes. */
+    public long size() throws IOException {
+        while (true) {
+            try {
+                return channel().size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    /** Force the writes made so far, and the file's metadata, to the disk. */
+    public void force() throws IOException {
+        while (true) {
+            try {
+                channel().force(true);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    /**
+     * Close the channel and drop the mappings. The channel is reopened if
+     * the file is used again; views returned by {@link #map(long, int)} stay
+     * valid until they are garbage collected.
+     */
+    public synchronized void close() {
+        regions.clear();
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    private int read(ByteBuffer buf, long position) throws IOException {
+        while (true) {
+            try {
+                return channel().read(buf, position);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    private int write(ByteBuffer buf, long position) throws IOException {
+        while (true) {
+            try {
+                return channel().write(buf, position);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen()) return c;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            }
+            return channel;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * In-memory free-space map of a HeapFile: the set of pages that may have an
+ * empty slot. It is built from the page headers on disk the first time an
+ * insert needs it and kept up to date by inserts and deletes afterwards.
+ * <p>
+ * The map is only a hint. A page it lists may have been filled by a
+ * transaction that has not committed yet, so inserts check for room once
+ * they hold the page; and space freed by an abort is only found again when
+ * the map is rebuilt, e.g. when the file is reopened.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+    private final HeapFile file;
+    private final DbFileChannel channel;
+    /** bit i is set if page i may have an empty slot, null until built */
+    private BitSet free = null;
+
+    FreeSpaceMap(HeapFile file, DbFileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the number of the first page at or after pgNo that may have an
+     * empty slot, or -1 if there is none.
+     */
+    synchronized int nextFreePage(int pgNo) throws IOException {
+        if (free == null) build();
+        return free.nextSetBit(pgNo);
+    }
+
+    /**
+     * Record whether a page has an empty slot.
+     */
+    synchronized void setFree(int pgNo, boolean hasRoom) {
+        // before the map is built the headers on disk are authoritative
+        if (free == null) return;
+        free.set(pgNo, hasRoom);
+    }
+
+    /**
+     * Forget the map, it is rebuilt from the disk when next needed.
+     */
+    synchronized void clear() {
+        free = null;
+    }
+
+    /**
+     * Read the header of every page, and nothing else.
+     */
+    private void build() throws IOException {
+        final TupleDesc td = file.getTupleDesc();
+        final int pageSize = BufferPool.getPageSize();
+        final byte[] header = new byte[HeapPage.getHeaderSize(td)];
+        final int numPages = file.numPages();
+
+        BitSet map = new BitSet(numPages);
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            if (channel.read(header, (long) pgNo * pageSize) < header.length) break;
+            if (HeapPage.hasEmptySlot(header, td)) map.set(pgNo);
+        }
+        free = map;
+    }
+}
@@ -10,6 +10,7 @@ import simpledb.transaction.TransactionId;
 import java.io.*;
 import java.nio.Buffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -23,9 +24,20 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** whether scans read ahead, see {@link #setReadAhead(boolean)} */
+    private static volatile boolean readAhead = false;
+
     private final File file;
+    /** kept open across reads and writes, see {@link #close()} */
+    private final DbFileChannel channel;
+    /** whether pages are read through a memory mapping of the file */
+    private volatile boolean memoryMapped = false;
     private final TupleDesc schema;
     private final int tableId;
+    /** number of writes to the file so far, pages read before a write may be stale */
+    private final AtomicLong writeCount = new AtomicLong();
+    /** pages that may have room for an insert */
+    private final FreeSpaceMap freeSpace;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -36,10 +48,33 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file = f;
+        this.channel = new DbFileChannel(f);
+        this.freeSpace = new FreeSpaceMap(this, this.channel);
         this.schema = td;
         this.tableId = f.getAbsoluteFile().hashCode();
     }
 
+    /**
+     * Turn sequential read-ahead for heap file scans on or off. When on, a
+     * scan that reads consecutive pages has the pages ahead of it read in
+     * large chunks and put into the buffer pool in the background. Off by
+     * default: pages read ahead bypass {@link #readPage(PageId)}.
+     */
+    public static void setReadAhead(boolean enabled) {
+        readAhead = enabled;
+    }
+
+    /**
+     * Turn memory mapped reads on or off for this file. When on, pages are
+     * parsed straight from a read-only mapping of the file instead of being
+     * read into a buffer first, which suits tables that are mostly read.
+     * Pages are still written back through {@link #writePage(Page)} by the
+     * buffer pool, after their log records.
+     */
+    public void setMemoryMapped(boolean mapped) {
+        this.memoryMapped = mapped;
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      * 
@@ -78,14 +113,14 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // some code goes here
         final int pageSize = BufferPool.getPageSize();
-        final int offset  = pid.getPageNumber() * pageSize;
-        byte[] data = new byte[pageSize];
+        final long offset  = (long) pid.getPageNumber() * pageSize;
 
         try {
-            RandomAccessFile input = new RandomAccessFile(this.file, "r");
-            input.skipBytes(offset);
-            input.read(data);
-            input.close();
+            if(this.memoryMapped){
+                return new HeapPage( (HeapPageId) pid, this.channel.map(offset, pageSize));
+            }
+            byte[] data = new byte[pageSize];
+            this.channel.read(data, offset);
             return new HeapPage( (HeapPageId) pid, data);
         } catch (Exception e) {
             e.printStackTrace();
@@ -93,14 +128,70 @@ public class HeapFile implements DbFile {
         }
     }
 
+    /**
+     * Read a run of consecutive pages with a single read, or from the
+     * mapping of the file if it is memory mapped.
+     * 
+     * @param pgNo the number of the first page to read
+     * @param count the number of pages to read
+     * @return the pages read; fewer than count if the file ends earlier
+     */
+    public List<Page> readPages(int pgNo, int count) throws IOException {
+        final int pageSize = BufferPool.getPageSize();
+        count = Math.max(0, Math.min(count, numPages() - pgNo));
+        List<Page> pages = new ArrayList<Page>(count);
+        if(this.memoryMapped){
+            for(int i = 0; i < count; i++){
+                HeapPageId pid = new HeapPageId(this.tableId, pgNo + i);
+                pages.add(new HeapPage(pid, this.channel.map((long) (pgNo + i) * pageSize, pageSize)));
+            }
+            return pages;
+        }
+
+        byte[] data = new byte[count * pageSize];
+
+        if(this.channel.read(data, (long) pgNo * pageSize) < data.length){
+            throw new EOFException("Unable to read " + count + " pages from HeapFile");
+        }
+
+        for(int i = 0; i < count; i++){
+            byte[] pageData = Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize);
+            pages.add(new HeapPage(new HeapPageId(this.tableId, pgNo + i), pageData));
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the number of writes to this file so far. A page read before
+     * the count last changed may not match the disk any more.
+     */
+    long getWriteCount() {
+        return this.writeCount.get();
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        RandomAccessFile output = new RandomAccessFile(file, "rw");
-        output.skipBytes(page.getId().getPageNumber() * BufferPool.getPageSize());
-        output.write(page.getPageData());
-        output.close();
+        this.writeCount.incrementAndGet();
+        this.channel.write(page.getPageData(), (long) page.getId().getPageNumber() * BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public void writePageBytes(PageId pid, int offset, byte[] data) throws IOException {
+        final int pageSize = BufferPool.getPageSize();
+        final long start = (long) pid.getPageNumber() * pageSize;
+        this.writeCount.incrementAndGet();
+        if(this.channel.size() < start + pageSize){
+            this.channel.write(new byte[1], start + pageSize - 1);
+        }
+        this.channel.write(data, start + offset);
+    }
+
+    // see DbFile.java for javadocs
+    public void close() {
+        this.freeSpace.clear();
+        this.channel.close();
     }
 
     /**
@@ -117,9 +208,15 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         BufferPool buf = Database.getBufferPool();
+        if(buf.isRecordLocking()){
+            return insertRecord(tid, t);
+        }
         HeapPage dirtyPage = null;
-        // find page that hs empty slot
-        for(int pageNo = 0; pageNo < this.numPages(); pageNo++){
+        // only visit the pages the free-space map says have an empty slot
+        final int numPages = this.numPages();
+        for(int pageNo = this.freeSpace.nextFreePage(0);
+                pageNo >= 0 && pageNo < numPages;
+                pageNo = this.freeSpace.nextFreePage(pageNo + 1)){
             PageId pid = new HeapPageId(this.tableId, pageNo);
             HeapPage page =(HeapPage) buf.getPage(tid, pid, Permissions.READ_WRITE);
                                                   
@@ -127,39 +224,116 @@ public class HeapFile implements DbFile {
                 dirtyPage = page;
                 break;
             }
-            // release the writer lock, because we don't modify this page
-            else buf.unsafeReleasePage(tid, pid);
+            // the map was stale; release the writer lock, because we don't modify this page
+            else{
+                this.freeSpace.setFree(pageNo, false);
+                buf.unpinPage(tid, pid);
+                buf.unsafeReleasePage(tid, pid);
+            }
         }
 
         if(dirtyPage == null){
             // create a new page
-            FileOutputStream output = new FileOutputStream(file, true);
-            output.write(HeapPage.createEmptyPageData());
-            output.close();
+            this.writeCount.incrementAndGet();
+            long offset = this.channel.append(HeapPage.createEmptyPageData());
 
             dirtyPage = (HeapPage) buf.getPage(tid, 
-                                               new HeapPageId(tableId, this.numPages()-1), 
+                                               new HeapPageId(tableId, (int) (offset / BufferPool.getPageSize())), 
                                                Permissions.READ_WRITE);
         }
 
         dirtyPage.insertTuple(t);
         dirtyPage.markDirty(true, tid);
+        this.freeSpace.setFree(dirtyPage.getId().getPageNumber(), dirtyPage.getNumEmptySlots() > 0);
 
         List<Page> modified = new ArrayList<Page>();
         modified.add(dirtyPage);
         return modified;
     }
 
+    /**
+     * Insert a tuple in record locking mode: the pages are locked
+     * INTENTION_EXCLUSIVE, and only the slot the tuple goes to is locked
+     * exclusively.
+     */
+    private List<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool buf = Database.getBufferPool();
+        final int numPages = this.numPages();
+        for(int pageNo = this.freeSpace.nextFreePage(0);
+                pageNo >= 0 && pageNo < numPages;
+                pageNo = this.freeSpace.nextFreePage(pageNo + 1)){
+            HeapPage page = (HeapPage) buf.getPage(tid, new HeapPageId(this.tableId, pageNo), Permissions.READ_WRITE);
+            if(insertInto(tid, page, t)){
+                return new ArrayList<Page>(Collections.singletonList(page));
+            }
+            buf.unpinPage(tid, page.getId());
+        }
+
+        // other transactions may fill a new page before we get a slot on it
+        while(true){
+            this.writeCount.incrementAndGet();
+            long offset = this.channel.append(HeapPage.createEmptyPageData());
+            PageId pid = new HeapPageId(this.tableId, (int) (offset / BufferPool.getPageSize()));
+            HeapPage page = (HeapPage) buf.getPage(tid, pid, Permissions.READ_WRITE);
+            if(insertInto(tid, page, t)){
+                return new ArrayList<Page>(Collections.singletonList(page));
+            }
+            buf.unpinPage(tid, pid);
+        }
+    }
+
+    /**
+     * Insert a tuple into a free slot of a page, after locking the slot.
+     * @return false if the page has no free slot
+     */
+    private boolean insertInto(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BufferPool buf = Database.getBufferPool();
+        final int pageNo = page.getId().getPageNumber();
+        while(true){
+            int slot = page.getFreeSlot();
+            if(slot < 0){
+                // slots emptied by running transactions are not free yet
+                if(page.getNumEmptySlots() == 0) this.freeSpace.setFree(pageNo, false);
+                return false;
+            }
+            // may block, so not while holding the page
+            buf.lockRecord(tid, new RecordId(page.getId(), slot), Permissions.READ_WRITE);
+            synchronized(page){
+                // another transaction may have taken the slot meanwhile
+                if(!page.isSlotUsed(slot)){
+                    page.insertTuple(t, slot);
+                    page.markDirty(true, tid);
+                    this.freeSpace.setFree(pageNo, page.getNumEmptySlots() > 0);
+                    return true;
+                }
+            }
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        BufferPool buf = Database.getBufferPool();
         PageId pid = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        HeapPage page = (HeapPage) buf.getPage(tid, pid, Permissions.READ_WRITE);
 
-        page.deleteTuple(t);
-        page.markDirty(true, tid);
+        if(buf.isRecordLocking()){
+            // the page is only locked INTENTION_EXCLUSIVE
+            buf.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+            synchronized(page){
+                page.deleteTuple(t);
+                page.markDirty(true, tid);
+            }
+        }
+        else{
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        }
+        this.freeSpace.setFree(pid.getPageNumber(), true);
 
         ArrayList<Page> modified = new ArrayList<Page>();
         modified.add(page);
@@ -175,11 +349,17 @@ public class HeapFile implements DbFile {
             private Iterator<Tuple> tupleIter = null;
             /** page number of current opening heap page */
             private int pgNo = 0; 
+            /** the page this iterator holds pinned, null if none */
+            private PageId pinned = null;
+            private final ReadAhead ahead = readAhead ? new ReadAhead(HeapFile.this) : null;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
                 PageId pid = new HeapPageId(tableId, this.pgNo);
+                this.unpin();
                 HeapPage page = (HeapPage) this.buf.getPage(tid, pid, Permissions.READ_ONLY);
+                this.pinned = pid;
+                if(this.ahead != null) this.ahead.pageRequested(this.pgNo);
 
                 if(page == null){
                     this.tupleIter = null;
@@ -199,7 +379,10 @@ public class HeapFile implements DbFile {
                 // if not, open next page
                 while(!this.tupleIter.hasNext()){
                     this.pgNo ++;
-                    if(this.pgNo >= this.pagesPerFile) return false;
+                    if(this.pgNo >= this.pagesPerFile){
+                        this.unpin();
+                        return false;
+                    }
                     this.open();
                 }
                 
@@ -224,9 +407,18 @@ public class HeapFile implements DbFile {
 
             @Override
             public void close() {
+                this.unpin();
                 this.pgNo = 0;
                 this.tupleIter = null;                
             }
+
+            /** Give up the pin on the current page, we keep the lock. */
+            private void unpin() {
+                if(this.pinned != null){
+                    this.buf.unpinPage(tid, this.pinned);
+                    this.pinned = null;
+                }
+            }
         };
     }
 }
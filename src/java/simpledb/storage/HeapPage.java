@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -29,7 +30,9 @@ public class HeapPage implements Page {
     private TransactionId dirtyTid;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    /** the page as read, which oldData is copied from when first needed */
+    private ByteBuffer oldSource;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -48,12 +51,30 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage straight from a buffer holding the page as it is
+     * stored on disk, e.g. a slice of a memory mapped file. The tuples are
+     * parsed from the buffer without copying it first, and the before-image
+     * keeps a read-only view of it until the page is first dirtied.
+     *
+     * @param id the id of the page
+     * @param data the page data, from its position to its limit; the
+     *        buffer's position is left unchanged
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
         this.dirty = false;
         this.dirtyTid = null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        data = data.duplicate();
+        // the page as read is the before-image until the next commit
+        ByteBuffer before = data.slice().asReadOnlyBuffer();
+        DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -70,7 +91,43 @@ public class HeapPage implements Page {
         }
         dis.close();
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+        oldSource = before;
+        }
+    }
+
+    /**
+     * An InputStream reading a ByteBuffer from its position to its limit.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return buf.remaining();
+        }
     }
 
     /** Retrieve the number of tuples on this page.
@@ -78,12 +135,40 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return getNumTuples(this.td);
+    }
+
+    /** Retrieve the number of tuple slots on a page holding tuples of the given schema. */
+    static int getNumTuples(TupleDesc td) {
         final int pageBits = BufferPool.getPageSize() * 8;
-        final int tupleBits = this.td.getSize() * 8 + 1;
+        final int tupleBits = td.getSize() * 8 + 1;
 
         return pageBits / tupleBits;
     }
 
+    /** Computes the number of header bytes of a page holding tuples of the given schema. */
+    static int getHeaderSize(TupleDesc td) {
+        final int headerBits = getNumTuples(td);
+
+        if(headerBits % 8 == 0) return headerBits / 8;
+        else return headerBits / 8 + 1;
+    }
+
+    /**
+     * Tells from the header of a page as stored on disk whether the page has
+     * an empty slot, without parsing the rest of the page.
+     *
+     * @param header the first {@link #getHeaderSize(TupleDesc)} bytes of the page
+     * @param td the schema of the tuples on the page
+     */
+    static boolean hasEmptySlot(byte[] header, TupleDesc td) {
+        final int slots = getNumTuples(td);
+        for(int i=0; i<slots; i++){
+            if((header[i / 8] & (1 << (i % 8))) == 0) return true;
+        }
+        return false;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -91,22 +176,30 @@ public class HeapPage implements Page {
     private int getHeaderSize() {        
         
         // some code goes here
-        final int headerBits = this.numSlots;
-
-        if(headerBits % 8 == 0) return headerBits / 8;
-        else return headerBits / 8 + 1;                 
+        return getHeaderSize(this.td);
     }
     
+    /**
+     * @return the bytes of the before-image, copied from the page as read the
+     * first time they are needed: a page only read never copies them
+     */
+    private byte[] beforeData() {
+        synchronized(oldDataLock)
+        {
+        if(oldData == null){
+            oldData = new byte[oldSource.remaining()];
+            oldSource.duplicate().get(oldData);
+            oldSource = null;
+        }
+        return oldData;
+        }
+    }
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,beforeData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -119,9 +212,53 @@ public class HeapPage implements Page {
         synchronized(oldDataLock)
         {
         oldData = getPageData().clone();
+        oldSource = null;
+        }
+    }
+
+    /**
+     * Use the current contents of the given slots as their before-image, and
+     * keep the before-image of the others: commits the records of one
+     * transaction on a page other transactions change too.
+     * @param slots the slots to take
+     */
+    public synchronized void setBeforeImage(Collection<Integer> slots) {
+        HeapPage before = getBeforeImage();
+        before.takeSlots(this, slots);
+        synchronized(oldDataLock)
+        {
+        oldData = before.getPageData();
+        }
+    }
+
+    /**
+     * Put the given slots back to their before-image: rolls back the records
+     * of one transaction on a page other transactions change too.
+     * @param slots the slots to restore
+     */
+    public synchronized void restoreSlots(Collection<Integer> slots) {
+        takeSlots(getBeforeImage(), slots);
+    }
+
+    /**
+     * Copy the given slots, used or empty, from another image of this page.
+     * @param from the image to copy from
+     * @param slots the slots to copy
+     */
+    synchronized void takeSlots(HeapPage from, Collection<Integer> slots) {
+        for (int i : slots) {
+            this.tuples[i] = from.tuples[i];
+            this.markSlotUsed(i, from.isSlotUsed(i));
         }
     }
 
+    /**
+     * @return whether the page holds no change since its before-image
+     */
+    public synchronized boolean matchesBeforeImage() {
+        return Arrays.equals(getPageData(), beforeData());
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -137,12 +274,11 @@ public class HeapPage implements Page {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+            try {
+                if (dis.skipBytes(td.getSize()) < td.getSize())
+                    throw new EOFException();
+            } catch (IOException e) {
+                throw new NoSuchElementException("error reading empty tuple");
             }
             return null;
         }
@@ -298,6 +434,34 @@ public class HeapPage implements Page {
         throw new DbException("page is full");
     }
 
+    /**
+     * Adds the specified tuple to the page in the given slot.
+     * @throws DbException if the slot is in use.
+     * @param t The tuple to add.
+     * @param slot The slot to put it in.
+     */
+    public synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if(this.isSlotUsed(slot)){
+            throw new DbException("tuple slot is already in use");
+        }
+        t.setRecordId(new RecordId(this.pid, slot));
+        this.tuples[slot] = t;
+        this.markSlotUsed(slot, true);
+    }
+
+    /**
+     * Returns a slot that is empty, and was empty in the before-image too,
+     * so that no running transaction may bring back a record to it; -1 if
+     * there is none.
+     */
+    public synchronized int getFreeSlot() {
+        byte[] before = beforeData();
+        for(int i=0; i<this.numSlots; i++){
+            if(!this.isSlotUsed(i) && (before[i / 8] & (1 << (i % 8))) == 0) return i;
+        }
+        return -1;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -305,6 +469,8 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	    // not necessary for lab1
+        // the page as read may change on disk once this page is flushed
+        if(dirty) beforeData();
         this.dirty = dirty;
         this.dirtyTid = tid;
     }
@@ -341,6 +507,14 @@ public class HeapPage implements Page {
         return (this.header[i / 8] & (1 << (i % 8))) != 0;
     }
 
+    /**
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public Tuple getTuple(int i) {
+        if(i < 0 || i >= numSlots || !isSlotUsed(i)) return null;
+        return tuples[i];
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -0,0 +1,140 @@
+package simpledb.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum): evicts the page whose K-th
+ * most recent access lies furthest in the past. Pages referenced fewer than
+ * K times have an infinite backward K-distance and go first, oldest first,
+ * so a single sequential scan cannot push out pages that are referenced
+ * repeatedly, such as index roots.
+ * <p>
+ * The access history of evicted pages is retained for a while, so that a
+ * page coming straight back into the pool is recognized as a hot page.
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+
+    /** Default K; LRU-2 already captures most of the benefit. */
+    public static final int DEFAULT_K = 2;
+    /** Default number of evicted pages whose history is retained. */
+    public static final int DEFAULT_RETAINED_HISTORY = 1024;
+
+    /** Position of a resident page in the eviction order. */
+    private static class Rank implements Comparable<Rank> {
+        final long kth;  // time of the K-th most recent access, -1 if unknown
+        final long last; // time of the most recent access, unique
+
+        Rank(long kth, long last) {
+            this.kth = kth;
+            this.last = last;
+        }
+
+        public int compareTo(Rank that) {
+            if(this.kth != that.kth) return Long.compare(this.kth, that.kth);
+            return Long.compare(this.last, that.last);
+        }
+    }
+
+    private final int k;
+    private final int retainedHistory;
+    /** logical clock, advanced on every access */
+    private long clock;
+
+    /** last K access times of resident pages, most recent first */
+    private final Map<PageId, long[]> history;
+    /** access history of recently evicted pages */
+    private final LinkedHashMap<PageId, long[]> retained;
+    /** current rank of every resident page */
+    private final Map<PageId, Rank> ranks;
+    /** evictable resident pages, in eviction order */
+    private final TreeMap<Rank, PageId> order;
+
+    public LRUKReplacementPolicy() {
+        this(DEFAULT_K, DEFAULT_RETAINED_HISTORY);
+    }
+
+    /**
+     * @param k the number of most recent accesses to track per page
+     * @param retainedHistory how many evicted pages keep their history
+     */
+    public LRUKReplacementPolicy(int k, int retainedHistory) {
+        if(k < 1) throw new IllegalArgumentException("K must be positive");
+        this.k = k;
+        this.retainedHistory = retainedHistory;
+        this.clock = 0;
+        this.history = new HashMap<PageId, long[]>();
+        this.retained = new LinkedHashMap<PageId, long[]>();
+        this.ranks = new HashMap<PageId, Rank>();
+        this.order = new TreeMap<Rank, PageId>();
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if(history.containsKey(pid)){
+            pageAccessed(pid);
+            return;
+        }
+        long[] times = retained.remove(pid);
+        if(times == null){
+            times = new long[k];
+            Arrays.fill(times, -1);
+        }
+        history.put(pid, times);
+        touch(pid, times);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        long[] times = history.get(pid);
+        if(times == null){
+            pageAdmitted(pid);
+            return;
+        }
+        Rank old = ranks.get(pid);
+        boolean evictable = order.remove(old) != null;
+        touch(pid, times);
+        if(!evictable) order.remove(ranks.get(pid));
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        long[] times = history.remove(pid);
+        if(times == null) return;
+        order.remove(ranks.remove(pid));
+
+        retained.put(pid, times);
+        Iterator<PageId> oldest = retained.keySet().iterator();
+        while(retained.size() > retainedHistory){
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        Rank rank = ranks.get(pid);
+        if(rank == null) return;
+        if(evictable) order.put(rank, pid);
+        else order.remove(rank);
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        for(PageId pid : order.values()){
+            if(canEvict.test(pid)) return pid;
+        }
+        return null;
+    }
+
+    /**
+     * Record an access at the current time and re-rank the page.
+     */
+    private void touch(PageId pid, long[] times) {
+        System.arraycopy(times, 0, times, 1, k - 1);
+        times[0] = clock++;
+        Rank rank = new Rank(times[k - 1], times[0]);
+        ranks.put(pid, rank);
+        order.put(rank, pid);
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb.storage;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement: evicts the page whose last access is the
+ * oldest.
+ */
+public class LRUReplacementPolicy implements ReplacementPolicy {
+
+    /** evictable resident pages, from least to most recently used */
+    private final LinkedHashMap<PageId, Boolean> pages;
+    /** resident pages that may not be evicted for now */
+    private final Set<PageId> held;
+
+    public LRUReplacementPolicy() {
+        this.pages = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        this.held = new HashSet<PageId>();
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if(!held.contains(pid)) pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // an access-ordered map moves the entry to the tail on get();
+        // a held page is moved there when it is released
+        if(!held.contains(pid) && pages.get(pid) == null){
+            pages.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        pages.remove(pid);
+        held.remove(pid);
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        if(evictable){
+            if(held.remove(pid)) pages.put(pid, Boolean.TRUE);
+        }
+        else if(pages.remove(pid) != null){
+            held.add(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        for(PageId pid : pages.keySet()){
+            if(canEvict.test(pid)) return pid;
+        }
+        return null;
+    }
+}
@@ -7,8 +7,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -22,8 +22,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -37,6 +37,34 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+Commits are forced in groups: a committer appends its COMMIT record under
+the log's monitor, then waits outside it until the record is durable. One of
+the waiting committers forces the log for all records appended so far, so
+concurrent commits share a single fsync. See {@link #force()}.
+
+<p>
+Records are not written to the file one field at a time: each record is
+serialized in memory and appended to a log buffer, which goes to the file
+in one large sequential write when it fills up, when the log is forced, or
+before the log is read. Appending a record returns its log sequence number
+(LSN), the position just past its end. The buffer pool keeps
+the LSN of the last record of each page it holds and forces the log only up
+to it before writing the page, see {@link #force(long)}.
+
+<p>
+The records are stored in segment files of a fixed size, see
+{@link #setSegmentSize(long)}, named after the log file with the segment
+number appended. Records never move: the position of a record in the log
+is its LSN, and {@link #logTruncate()} deletes the segments holding only
+records that are no longer needed.
+
+<p>
+Recovery reads the log on one thread but redoes it on several, see
+{@link #setRedoThreads(int)}: the update records of a page are all applied
+by the same thread, in log order, and those of different pages commute.
+Loser transactions are then rolled back one at a time.
 */
 
 /**
@@ -44,40 +72,52 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a single long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All other data in the log consists of log records, in the
+segment files.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
 <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
 CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a page delta: the id of the page and the
+runs of bytes the update changed, each with its old and new contents.
+Deltas are serialized and applied by the PageDelta class.  See
+LogFile.print() for an example.
+
+<li> CHECKPOINT records consist of the LSN the checkpoint began at,
+the active transactions at the time the checkpoint was taken and their
+first log record, and the dirty page table: the pages whose logged
+changes may not be on disk yet, each with the LSN recovery must redo it
+from.  The format of the record is a long integer begin LSN; an integer
+count of the number of transactions, and a long integer transaction id
+and a long integer first record LSN for each active transaction; an
+integer count of the number of dirty pages, and an integer table id, an
+integer page number and a long integer redo LSN for each dirty page.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> UPDATE records are also written by rollback, undoing an earlier
+UPDATE record of the transaction; recovery redoes them like the others.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    /** the log file itself, holding the LSN of the last checkpoint */
+    private final RandomAccessFile anchor;
+    /** the segment files, holding the records */
+    private final LogSegments segments;
+    /** reads records from the segments; protected by this */
+    private final LogSegments.Input in;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -90,12 +130,45 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Size of the in-memory log buffer, in bytes. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    /** Default size of a log segment file, in bytes. */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    private static long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    /** Default number of threads redoing the log on recovery. */
+    public static final int DEFAULT_REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static int redoThreads = DEFAULT_REDO_THREADS;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /**
+     * records appended but not written to the file yet; they belong just
+     * before currentOffset. protected by this
+     */
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+    /** the record being serialized, see beginRecord. protected by this */
+    private final RecordBuffer recordBytes = new RecordBuffer();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    /** guards the fields below; may be taken while holding this, never the other way round */
+    private final Object flushLock = new Object();
+    /** the log is on disk up to this LSN */
+    private long durableLsn = 0;
+    /** whether a thread is forcing the log for a group of waiters */
+    private boolean flushing = false;
+    /** number of times the log was forced, see {@link #getForceCount()} */
+    private long forceCount = 0;
+    /** run by the leader of a group before it forces, see {@link #setGroupForceHook} */
+    private volatile Runnable groupForceHook;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -109,7 +182,9 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        anchor = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        in = segments.newInput();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -123,6 +198,32 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    /**
+     * Set the size of the segment files of logs opened from now on. Only
+     * for testing; logs written with another size cannot be read.
+     */
+    public static void setSegmentSize(long segmentSize) {
+        LogFile.segmentSize = segmentSize;
+    }
+
+    /** Reset the segment size to its default, see {@link #setSegmentSize(long)}. */
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /**
+     * Set the number of threads that apply the update records on
+     * recovery; with one, recovery applies them itself.
+     */
+    public static void setRedoThreads(int redoThreads) {
+        LogFile.redoThreads = redoThreads;
+    }
+
+    /** Reset the number of redo threads to its default, see {@link #setRedoThreads(int)}. */
+    public static void resetRedoThreads() {
+        LogFile.redoThreads = DEFAULT_REDO_THREADS;
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -130,17 +231,97 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.deleteAll();
+            anchor.setLength(0);
+            writeCheckpointLsn(NO_CHECKPOINT_ID);
+            currentOffset = 0;
+        }
+    }
+
+    /** A ByteArrayOutputStream whose contents can be read without a copy. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Start serializing a record, with its type and transaction id. The
+     * rest of the record is written to the returned stream, then the record
+     * is appended with {@link #endRecord()}. The caller must hold this.
+     */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    /**
+     * Finish the record started by beginRecord with its start offset, and
+     * append it to the log buffer. The caller must hold this.
+     *
+     * @return the LSN of the record, just past its end
+     */
+    private long endRecord() throws IOException {
+        record.writeLong(currentOffset);
+        ByteBuffer contents = recordBytes.contents();
+        if (contents.remaining() > logBuffer.remaining()) flushBuffer();
+        if (contents.remaining() > logBuffer.remaining()) {
+            // larger than the whole buffer, goes straight to the file
+            writeFully(contents, currentOffset);
+        } else {
+            logBuffer.put(contents);
         }
+        currentOffset += recordBytes.size();
+        return currentOffset;
+    }
+
+    /**
+     * Write the log buffer to the segments, without forcing it. Must be
+     * called before reading the log. The caller must hold this.
+     */
+    private void flushBuffer() throws IOException {
+        if (logBuffer.position() == 0) return;
+        logBuffer.flip();
+        writeFully(logBuffer, currentOffset - logBuffer.remaining());
+        logBuffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        segments.write(data, position);
+    }
+
+    /** Point the log file at a checkpoint record and force it. */
+    private void writeCheckpointLsn(long lsn) throws IOException {
+        anchor.seek(0);
+        anchor.writeLong(lsn);
+        anchor.getFD().sync();
+    }
+
+    /** Returns the LSN of the last checkpoint record, or NO_CHECKPOINT_ID. */
+    private long readCheckpointLsn() throws IOException {
+        anchor.seek(0);
+        return anchor.readLong();
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Returns the LSN the next record will start at; the records appended
+     * from now on all start at or after it.
+     */
+    public synchronized long getEndLsn() {
+        // before the first append the log is emptied, and starts at 0
+        return Math.max(currentOffset, 0);
+    }
+
+    /** Returns the number of segment files the log takes. */
+    public int getNumSegments() {
+        return segments.numSegments();
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -161,10 +342,8 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -176,117 +355,65 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        final long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            lsn = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        // wait outside the monitor, so that other committers can append
+        // their records and share the next force
+        awaitDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        bytes that differ between the images are logged.
         @param tid The transaction performing the write
-        @param before The before image of the page
+        @param before The before image of the page, the image the
+        previous UPDATE record of the page left it in
         @param after The after image of the page
 
+        @return the LSN of the record; the log must be forced up to it
+        before the after image is written to disk
+
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, after.getId(), before.getPageData(), after.getPageData());
+    }
+
+    /** Write an UPDATE record for the specified tid and page, with
+        the before and after images given as page data.
+
+        @see #logWrite(TransactionId, Page, Page)
+    */
+    public synchronized long logWrite(TransactionId tid, PageId pid,
+                                      byte[] before, byte[] after)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageDelta.between(pid, before, after).write(out);
+        long lsn = endRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
-    }
-
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+        return lsn;
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -301,149 +428,150 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        endRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it writes no page and blocks nobody while
+        it is taken.  Instead the record holds the dirty page table of
+        the buffer pool, and recovery redoes those pages from the LSNs
+        it lists; the page cleaner writes them back in its own time.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        final long beginLsn;
+        synchronized (this) {
+            preAppend();
+            beginLsn = currentOffset;
+        }
+        // recovery redoes everything from beginLsn on, so pages first
+        // logged while the table is collected need not be in it
+        final Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            long startCpOffset = currentOffset;
+            DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+            out.writeLong(beginLsn);
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                out.writeInt(e.getKey().getTableId());
+                out.writeInt(e.getKey().getPageNumber());
+                out.writeLong(e.getValue());
             }
+            endRecord();
+
+            //once the CP is durable, make sure the CP location in
+            // the log file is updated
+            forceNow();
+            writeCheckpointLsn(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** The contents of a CHECKPOINT record, see logCheckpoint. */
+    private static class Checkpoint {
+        long beginLsn;
+        /** first record LSN of each active transaction */
+        final Map<Long, Long> transactions = new HashMap<>();
+        /** redo LSN of each dirty page, by pageKey */
+        final Map<Long, Long> dirtyPages = new HashMap<>();
+
+        /** Read the record, after its type and transaction id. */
+        static Checkpoint read(DataInput in) throws IOException {
+            Checkpoint cp = new Checkpoint();
+            cp.beginLsn = in.readLong();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long tid = in.readLong();
+                cp.transactions.put(tid, in.readLong());
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            int numDirty = in.readInt();
+            while (numDirty-- > 0) {
+                int tableId = in.readInt();
+                int pageNo = in.readInt();
+                cp.dirtyPages.put(pageKey(tableId, pageNo), in.readLong());
             }
+            return cp;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+        /** Returns the LSN redo starts at. */
+        long redoLsn() {
+            long lsn = beginLsn;
+            for (long recLsn : dirtyPages.values()) lsn = Math.min(lsn, recLsn);
+            return lsn;
+        }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+        /**
+         * Whether the update of a page logged at the given LSN, before
+         * the checkpoint record, may be missing from the disk.
+         */
+        boolean mustRedo(PageId pid, long lsn) {
+            if (lsn >= beginLsn) return true;
+            Long recLsn = dirtyPages.get(pageKey(pid.getTableId(), pid.getPageNumber()));
+            return recLsn != null && lsn >= recLsn;
+        }
 
-                Debug.log("NEW START = " + newStart);
+        private static long pageKey(int tableId, int pageNo) {
+            return ((long) tableId << 32) | (pageNo & 0xffffffffL);
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Read the CHECKPOINT record at the given LSN. */
+    private Checkpoint readCheckpoint(long lsn) throws IOException {
+        in.seek(lsn);
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return Checkpoint.read(in);
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        flushBuffer();
+        long cpLoc = readCheckpointLsn();
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // recovery may need all of it
+            return;
+        }
 
-            } catch (EOFException e) {
-                break;
+        // recovery needs the records from where redo starts, and back to
+        // the first record of each transaction it may have to undo
+        Checkpoint cp = readCheckpoint(cpLoc);
+        long minLogRecord = cp.redoLsn();
+        for (long firstLogRecord : cp.transactions.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can drop everything before minLogRecord; records keep their
+        // LSNs, so only whole segments before it go
+        int deleted = segments.deleteBefore(minLogRecord);
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+        Debug.log("TRUNCATING LOG; DELETED " + deleted + " SEGMENTS ; NEW START : " + segments.getStart() + " MIN RECORD : " + minLogRecord);
         //print();
     }
 
@@ -451,7 +579,9 @@ public class LogFile {
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  Each undo is logged as an UPDATE
+        record of the transaction, so recovery redoes it like any other
+        change instead of rolling the transaction back again.
 
         @param tid The transaction to rollback
     */
@@ -465,27 +595,28 @@ public class LogFile {
                     return;
                 }
 
-                raf.seek(raf.getFilePointer() - 8);
-                long offset = raf.readLong(); // the start offset of the latest log
+                flushBuffer();
+                in.seek(currentOffset - 8);
+                long offset = in.readLong(); // the start offset of the latest log
 
                 // scan all logs reversly
                 while (offset > tidToFirstLogRecord.get(tid.getId())){
-                    raf.seek(offset);
-
-                    if(raf.readInt() == UPDATE_RECORD && raf.readLong() == tid.getId()){
-                        Page beforeImage = readPageData(raf);
-                        PageId pid = beforeImage.getId();
-                        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                        Database.getBufferPool().discardPage(pid);
-                        file.writePage(beforeImage);
-                        
+                    in.seek(offset);
+
+                    if(in.readInt() == UPDATE_RECORD && in.readLong() == tid.getId()){
+                        PageDelta delta = PageDelta.read(in);
+                        Database.getBufferPool().discardPage(delta.getPageId());
+                        // compensation record; rollback never reads it
+                        // back, its records are all older
+                        DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
+                        delta.inverse().write(out);
+                        endRecord();
+                        delta.undo();
                     }
                     // set offset to the start of next latest log
-                    raf.seek(offset-8);
-                    offset = raf.readLong();
+                    in.seek(offset-8);
+                    offset = in.readLong();
                 }
-
-                raf.seek(currentOffset);
             }
         }
     }
@@ -494,10 +625,13 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+                anchor.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -512,129 +646,139 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
+                flushBuffer();
                 // some code goes here
                 // seek the position of checkpoint 
-                raf.seek(0);
-
                 tidToFirstLogRecord.clear();
-                final long checkpointOffset = raf.readLong();
+                final long checkpointOffset = readCheckpointLsn();
+                // without a checkpoint, redo all of the log
+                Checkpoint cp = null;
+                long redoStart = segments.getStart();
                 // analysis the dirty transaction
-                if(checkpointOffset != -1){
-                    raf.seek(checkpointOffset);
-                    raf.readInt(); // read type
-                    raf.readLong(); // read tid
-                    final int numberDirty = raf.readInt();
-                    for(int i=0; i<numberDirty; i++){
-                        tidToFirstLogRecord.put(raf.readLong(), raf.readLong());
-                    }
-                    raf.readLong(); // read start offset
+                if(checkpointOffset != NO_CHECKPOINT_ID){
+                    cp = readCheckpoint(checkpointOffset);
+                    tidToFirstLogRecord.putAll(cp.transactions);
+                    redoStart = cp.redoLsn();
                 }
                 
                 // offset now point to the first redo log
-                currentOffset = raf.getFilePointer();
-                // Let's Redo!
-                while(currentOffset < raf.length()){
-                    final int type = raf.readInt();
-                    final TransactionId tid = new TransactionId(raf.readLong());
-                    if(type == BEGIN_RECORD){
-                        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-                    }
-                    else if(type == COMMIT_RECORD){
-                        tidToFirstLogRecord.remove(tid.getId());
-                    }
-                    else if(type == ABORT_RECORD){
-                        final long offset = raf.getFilePointer();
-                        raf.seek(currentOffset);
-                        rollback(tid);
-                        raf.seek(offset);
-                        tidToFirstLogRecord.remove(tid.getId());
+                in.seek(redoStart);
+                currentOffset = redoStart;
+                final long end = in.length();
+                // Let's Redo! the log is read here, the deltas are
+                // applied by the workers
+                try (ParallelRedo redo = new ParallelRedo(redoThreads)) {
+                    while(currentOffset < end){
+                        final int type = in.readInt();
+                        final TransactionId tid = new TransactionId(in.readLong());
+                        // the checkpoint lists the transactions active at it
+                        final boolean afterCheckpoint = cp == null || currentOffset > checkpointOffset;
+                        if(type == BEGIN_RECORD){
+                            if(afterCheckpoint) tidToFirstLogRecord.put(tid.getId(), currentOffset);
+                        }
+                        else if(type == COMMIT_RECORD || type == ABORT_RECORD){
+                            // an abort was rolled back already, by records redone here
+                            if(afterCheckpoint) tidToFirstLogRecord.remove(tid.getId());
+                        }
+                        else if(type == UPDATE_RECORD){
+                            final PageDelta delta = PageDelta.read(in);
+                            if(cp == null || cp.mustRedo(delta.getPageId(), currentOffset)){
+                                redo.submit(delta);
+                            }
+                        }
+                        else if(type == CHECKPOINT_RECORD){
+                            Checkpoint.read(in);
+                        }
+                        else{
+                            System.out.println("unhandled log type");
+                        }
+                        in.readLong(); // read start offset
+                        currentOffset = in.getFilePointer();
                     }
-                    else if(type == UPDATE_RECORD){
-                        readPageData(raf); // read before image
-                        final Page afterImage = readPageData(raf);
-                        final PageId pid = afterImage.getId();
-                        final DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                        file.writePage(afterImage);
+                    for(PageId pid : redo.finish()){
                         Database.getBufferPool().discardPage(pid);
                     }
-                    else{
-                        System.out.println("unhandled log type");
-                    }
-                    raf.readLong(); // read start offset
-                    currentOffset = raf.getFilePointer();
                 }
 
-                // Undo!!
-                for(long tidNum : tidToFirstLogRecord.keySet()){
+                // Undo!! one transaction at a time, on this thread
+                for(long tidNum : new ArrayList<>(tidToFirstLogRecord.keySet())){
                     rollback(new TransactionId(tidNum));
+                    beginRecord(ABORT_RECORD, tidNum);
+                    endRecord();
                 }
+                forceNow();
                 tidToFirstLogRecord.clear();
             }
          }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
+    public synchronized void print() throws IOException {
+        flushBuffer();
+        long curOffset = in.getFilePointer();
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("checkpoint record at offset " + readCheckpointLsn());
+        in.seek(segments.getStart());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = in.readInt();
+                long cpTid = in.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((in.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((in.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.getFilePointer() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.getFilePointer() + ": RECORD START OFFSET: " + in.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.getFilePointer() + ": RECORD START OFFSET: " + in.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    System.out.println(in.getFilePointer() + ": BEGIN LSN: " + in.readLong());
+                    int numTransactions = in.readInt();
+                    System.out.println((in.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = in.readLong();
+                        long firstRecord = in.readLong();
+                        System.out.println((in.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((in.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                    }
+                    int numDirty = in.readInt();
+                    System.out.println((in.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        int tableId = in.readInt();
+                        int pageNo = in.readInt();
+                        long recLsn = in.readLong();
+                        System.out.println((in.getFilePointer() - (INT_SIZE + INT_SIZE + LONG_SIZE)) + ": PAGE: table " + tableId + " page " + pageNo);
+                        System.out.println((in.getFilePointer() - LONG_SIZE) + ": REDO LSN: " + recLsn);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.getFilePointer() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    long start = in.getFilePointer();
+                    PageDelta delta = PageDelta.read(in);
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println(start + ": page table id " + delta.getPageId().getTableId());
+                    System.out.println(start + ": page number " + delta.getPageId().getPageNumber());
+                    System.out.println(start + " TO " + in.getFilePointer() + ": " + delta.numRuns()
+                            + " runs of changed bytes, " + delta.numBytes() + " bytes");
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(in.getFilePointer() + ": RECORD START OFFSET: " + in.readLong());
 
                     break;
                 }
@@ -646,11 +790,121 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        in.seek(curOffset);
+    }
+
+    /**
+     * Force every record appended so far to disk. Callers that do not hold
+     * this log's monitor join a group: one of them forces the log while the
+     * others wait for it, and records appended in the meantime go with the
+     * next force.
+     */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            // no other thread could append, or force, for us
+            forceNow();
+            return;
+        }
+        final long lsn;
+        synchronized (this) {
+            lsn = currentOffset;
+        }
+        awaitDurable(lsn);
+    }
+
+    /**
+     * Force the log up to the given LSN, e.g. one returned by
+     * {@link #logWrite}. Does nothing if the log is durable that far
+     * already, as it usually is once the transaction committed.
+     */
+    public void force(long lsn) throws IOException {
+        synchronized (flushLock) {
+            if (durableLsn >= lsn) return;
+        }
+        if (Thread.holdsLock(this)) {
+            forceNow();
+            return;
+        }
+        awaitDurable(lsn);
+    }
+
+    /**
+     * Returns whether the transaction logged its BEGIN record and has not
+     * completed yet, that is whether {@link #rollback} can undo its updates.
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Set code for the committer that forces the log for a group to run just
+     * before it forces, while the others wait; null for none. Tests use it to
+     * hold the group open.
+     */
+    public void setGroupForceHook(Runnable hook) {
+        this.groupForceHook = hook;
+    }
+
+    /**
+     * Returns the number of times the log was actually forced to disk.
+     */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forceCount;
+        }
+    }
+
+    /** Force the log while holding the monitor. */
+    private synchronized void forceNow() throws IOException {
+        flushBuffer();
+        segments.force();
+        synchronized (flushLock) {
+            forceCount++;
+            durableLsn = currentOffset;
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to the given LSN, forcing it if no
+     * other thread is. Must not be called holding this log's monitor.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (flushLock) {
+            while (durableLsn < lsn) {
+                if (!flushing) {
+                    flushing = true;
+                    break;
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (durableLsn >= lsn) return;
+        }
+
+        // we lead this group: force everything appended up to now, which
+        // covers our record and those of the committers waiting on us
+        try {
+            final long target;
+            synchronized (this) {
+                flushBuffer();
+                target = currentOffset;
+            }
+            final Runnable hook = groupForceHook;
+            if (hook != null) hook.run();
+            segments.force();
+            synchronized (flushLock) {
+                forceCount++;
+                if (target > durableLsn) durableLsn = target;
+            }
+        } finally {
+            synchronized (flushLock) {
+                flushing = false;
+                flushLock.notifyAll();
+            }
+        }
     }
 
 }
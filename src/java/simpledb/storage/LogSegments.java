@@ -0,0 +1,297 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The records of a LogFile, stored in fixed-size segment files. An LSN is a
+ * position in the log; the bytes at LSNs [n * size, (n + 1) * size) are in
+ * the segment file named after the log file with ".n" appended. A record may
+ * continue from one segment into the next.
+ * <p>
+ * The log is truncated by deleting the segments before an LSN, so records
+ * never move and their LSNs are also their positions.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    private final File base;
+    private final long segmentSize;
+    /** the segments there are, by number; guarded by this */
+    private final TreeMap<Long, FileChannel> channels = new TreeMap<>();
+    /**
+     * segments written since they were last forced, with the number of the
+     * last write to each; guarded by this
+     */
+    private final Map<Long, Long> unforced = new HashMap<>();
+    /** number of writes so far; guarded by this */
+    private long writes = 0;
+
+    /**
+     * @param base the log file, the segments are named after it
+     * @param segmentSize the number of bytes in a segment
+     */
+    LogSegments(File base, long segmentSize) throws IOException {
+        this.base = base.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        File[] files = this.base.getParentFile().listFiles();
+        if (files == null) return;
+        final String prefix = this.base.getName() + ".";
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix)) continue;
+            try {
+                long n = Long.parseLong(name.substring(prefix.length()));
+                channels.put(n, open(n, false));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+    }
+
+    /** Returns the number of bytes in a segment. */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Returns the number of segments there are. */
+    synchronized int numSegments() {
+        return channels.size();
+    }
+
+    /** Returns the LSN of the first byte still in the log. */
+    synchronized long getStart() {
+        return channels.isEmpty() ? 0 : channels.firstKey() * segmentSize;
+    }
+
+    /** Returns the LSN just past the last byte written. */
+    synchronized long getEnd() throws IOException {
+        if (channels.isEmpty()) return 0;
+        long last = channels.lastKey();
+        return last * segmentSize + size(last);
+    }
+
+    /**
+     * Write all of data at the given LSN, creating segments as needed.
+     */
+    void write(ByteBuffer data, long lsn) throws IOException {
+        while (data.hasRemaining()) {
+            final long n = lsn / segmentSize;
+            final long offset = lsn - n * segmentSize;
+            final int length = (int) Math.min(data.remaining(), segmentSize - offset);
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            while (part.hasRemaining()) {
+                try {
+                    channel(n, true).write(part, offset + part.position() - data.position());
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // closed by another thread, reopen
+                }
+            }
+            synchronized (this) {
+                unforced.put(n, ++writes);
+            }
+            data.position(data.position() + length);
+            lsn += length;
+        }
+    }
+
+    /**
+     * Read up to dst.remaining() bytes at the given LSN, not past the end of
+     * its segment.
+     *
+     * @return the number of bytes read, -1 if there are none at the LSN
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        final long n = lsn / segmentSize;
+        final long offset = lsn - n * segmentSize;
+        ByteBuffer part = dst.duplicate();
+        part.limit(part.position() + (int) Math.min(dst.remaining(), segmentSize - offset));
+        while (true) {
+            FileChannel channel = channel(n, false);
+            if (channel == null) return -1;
+            try {
+                int read = channel.read(part, offset);
+                if (read > 0) dst.position(part.position());
+                return read;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    /**
+     * Force every segment written since it was last forced. A segment stays
+     * unforced until its force is done, so that a concurrent call forces it
+     * too rather than return early.
+     */
+    void force() throws IOException {
+        Map<Long, Long> segments;
+        synchronized (this) {
+            segments = new HashMap<>(unforced);
+        }
+        for (Map.Entry<Long, Long> e : segments.entrySet()) {
+            while (true) {
+                FileChannel channel = channel(e.getKey(), false);
+                // deleted meanwhile: it is not needed any more
+                if (channel == null) break;
+                try {
+                    channel.force(true);
+                    break;
+                } catch (ClosedByInterruptException ex) {
+                    throw ex;
+                } catch (ClosedChannelException ex) {
+                    // closed by another thread, reopen
+                }
+            }
+            synchronized (this) {
+                // unless written again meanwhile
+                unforced.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Delete the segments that end at or before the given LSN.
+     *
+     * @return the number of segments deleted
+     */
+    synchronized int deleteBefore(long lsn) {
+        int deleted = 0;
+        while (!channels.isEmpty() && (channels.firstKey() + 1) * segmentSize <= lsn) {
+            Map.Entry<Long, FileChannel> e = channels.pollFirstEntry();
+            unforced.remove(e.getKey());
+            close(e.getValue());
+            segmentFile(e.getKey()).delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Delete every segment. */
+    synchronized void deleteAll() {
+        for (Map.Entry<Long, FileChannel> e : channels.entrySet()) {
+            close(e.getValue());
+            segmentFile(e.getKey()).delete();
+        }
+        channels.clear();
+        unforced.clear();
+    }
+
+    /** Close every segment, they are not used any more. */
+    synchronized void close() {
+        for (FileChannel c : channels.values()) close(c);
+    }
+
+    /**
+     * A stream over the log that reads from any LSN on, until the end of the
+     * log or up to a deleted segment.
+     */
+    Input newInput() {
+        return new Input(new Stream());
+    }
+
+    /** A DataInputStream over the log, positioned with {@link #seek(long)}. */
+    class Input extends DataInputStream {
+        private final Stream stream;
+
+        private Input(Stream stream) {
+            super(stream);
+            this.stream = stream;
+        }
+
+        /** Read from the given LSN on. */
+        void seek(long lsn) {
+            stream.position = lsn;
+        }
+
+        /** Returns the LSN of the next byte read. */
+        long getFilePointer() {
+            return stream.position;
+        }
+
+        /** Returns the LSN just past the end of the log. */
+        long length() throws IOException {
+            return getEnd();
+        }
+    }
+
+    private class Stream extends InputStream {
+        long position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = LogSegments.this.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) position += n;
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    private File segmentFile(long n) {
+        return new File(base.getPath() + "." + n);
+    }
+
+    private long size(long n) throws IOException {
+        while (true) {
+            try {
+                return channel(n, false).size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, reopen
+            }
+        }
+    }
+
+    /**
+     * Returns the open channel of a segment, reopened if another thread's
+     * interrupt closed it; or null if there is no such segment and create is
+     * false.
+     */
+    private synchronized FileChannel channel(long n, boolean create) throws IOException {
+        FileChannel c = channels.get(n);
+        if (c != null && c.isOpen()) return c;
+        if (c == null && !create) return null;
+        c = open(n, c == null);
+        channels.put(n, c);
+        return c;
+    }
+
+    private FileChannel open(long n, boolean create) throws IOException {
+        if (create) {
+            return FileChannel.open(segmentFile(n).toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return FileChannel.open(segmentFile(n).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void close(FileChannel c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
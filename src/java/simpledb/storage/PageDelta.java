@@ -0,0 +1,204 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The change between two images of a page, as logged by an UPDATE record: the
+ * runs of bytes that differ, each with its old and new contents. Inserting or
+ * deleting a tuple of a HeapPage changes a header byte and one slot, so its
+ * delta is a few dozen bytes instead of two whole pages; changes to B-tree
+ * pages are logged the same way.
+ * <p>
+ * A delta is applied to the page on disk: {@link #redo()} writes the new
+ * bytes of each run and {@link #undo()} writes the old ones back, through
+ * {@link DbFile#writePageBytes}. Applying the deltas of a page in log order,
+ * or backwards in reverse log order, is only correct if each delta was taken
+ * against the image the previous one produced, so the buffer pool takes
+ * each delta of a page from the page's last logged image.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Differing runs closer than this are merged, a run costs that much to log. */
+    static final int MERGE_GAP = 2 * LogFile.INT_SIZE;
+
+    private final PageId pid;
+    private final int pageSize;
+    /** the runs of changed bytes, in page order */
+    private final List<Run> runs;
+
+    private static class Run {
+        final int offset;
+        final byte[] before;
+        final byte[] after;
+
+        Run(int offset, byte[] before, byte[] after) {
+            this.offset = offset;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private PageDelta(PageId pid, int pageSize, List<Run> runs) {
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.runs = runs;
+    }
+
+    /**
+     * Returns the delta that turns before into after.
+     */
+    static PageDelta between(Page before, Page after) {
+        return between(after.getId(), before.getPageData(), after.getPageData());
+    }
+
+    /**
+     * Returns the delta that turns the page data old into cur.
+     */
+    static PageDelta between(PageId pid, byte[] old, byte[] cur) {
+        if (old.length != cur.length)
+            throw new IllegalArgumentException("images of " + pid + " differ in size");
+
+        List<Run> runs = new ArrayList<>();
+        int i = 0;
+        while (i < cur.length) {
+            if (old[i] == cur[i]) {
+                i++;
+                continue;
+            }
+            final int start = i;
+            int end = i + 1; // exclusive end of the run
+            // the run grows while the next difference is close enough
+            for (int j = end; j < cur.length && j < end + MERGE_GAP; j++) {
+                if (old[j] != cur[j]) end = j + 1;
+            }
+            runs.add(new Run(start, copy(old, start, end), copy(cur, start, end)));
+            i = end;
+        }
+        return new PageDelta(pid, cur.length, runs);
+    }
+
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** Returns the number of runs of changed bytes. */
+    int numRuns() {
+        return runs.size();
+    }
+
+    /** Returns the number of changed bytes logged, including merged gaps. */
+    int numBytes() {
+        int n = 0;
+        for (Run r : runs) n += r.after.length;
+        return n;
+    }
+
+    /**
+     * Returns the delta that undoes this one.
+     */
+    PageDelta inverse() {
+        List<Run> inverted = new ArrayList<>(runs.size());
+        for (Run r : runs) inverted.add(new Run(r.offset, r.after, r.before));
+        return new PageDelta(pid, pageSize, inverted);
+    }
+
+    /**
+     * Install the new bytes in the page on disk.
+     */
+    void redo() throws IOException {
+        apply(true);
+    }
+
+    /**
+     * Put the old bytes back in the page on disk.
+     */
+    void undo() throws IOException {
+        apply(false);
+    }
+
+    private void apply(boolean redo) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        // only the changed runs are written, the rest of the page is not read
+        for (Run r : runs) {
+            byte[] bytes = redo ? r.after : r.before;
+            if (r.offset < 0 || r.offset + bytes.length > pageSize)
+                throw new IOException("run at " + r.offset + " overflows " + pageSize + " bytes of " + pid);
+            file.writePageBytes(pid, r.offset, bytes);
+        }
+    }
+
+    /*
+     * a delta is
+     *   page id class name
+     *   number of page id ints, and the ints
+     *   page size
+     *   number of runs
+     *   for each run: offset, length, old bytes, new bytes
+     */
+
+    void write(DataOutput out) throws IOException {
+        int[] idInts = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(idInts.length);
+        for (int j : idInts) {
+            out.writeInt(j);
+        }
+        out.writeInt(pageSize);
+        out.writeInt(runs.size());
+        for (Run r : runs) {
+            out.writeInt(r.offset);
+            out.writeInt(r.after.length);
+            out.write(r.before);
+            out.write(r.after);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        PageId pid;
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            Class<?>[] idArgTypes = new Class<?>[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = in.readInt();
+                idArgTypes[i] = int.class;
+            }
+            pid = (PageId) idClass.getDeclaredConstructor(idArgTypes).newInstance(idArgs);
+        } catch (ClassNotFoundException | NoSuchMethodException | InvocationTargetException
+                | IllegalAccessException | InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+
+        int pageSize = in.readInt();
+        int numRuns = in.readInt();
+        List<Run> runs = new ArrayList<>(numRuns);
+        for (int i = 0; i < numRuns; i++) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            byte[] before = new byte[length];
+            byte[] after = new byte[length];
+            in.readFully(before);
+            in.readFully(after);
+            runs.add(new Run(offset, before, after));
+        }
+        return new PageDelta(pid, pageSize, runs);
+    }
+
+    private static byte[] copy(byte[] data, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        System.arraycopy(data, from, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The redo pass of {@link LogFile#recover()}, spread over worker threads.
+ * The log is still read by one thread, which hands each delta to the worker
+ * that owns its page. A worker applies the deltas of its pages in log order;
+ * deltas of different pages commute, so the workers need not coordinate.
+ * <p>
+ * With a single thread the deltas are applied by the caller as they are
+ * submitted, as recovery did before.
+ */
+class ParallelRedo implements AutoCloseable {
+
+    /** Deltas handed to a worker at a time. */
+    static final int BATCH_SIZE = 64;
+    /** Batches a worker may have queued before the reader waits for it. */
+    static final int QUEUE_BATCHES = 16;
+
+    /** Tells a worker there is nothing more to redo. */
+    private static final List<PageDelta> END = Collections.emptyList();
+
+    private final Worker[] workers;
+    /** the batch being filled for each worker */
+    private final List<List<PageDelta>> batches;
+    /** the pages redone so far */
+    private final Set<PageId> pages = new HashSet<>();
+    /** the first failure of a worker; later deltas are skipped */
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private boolean finished = false;
+
+    /**
+     * Start the workers.
+     *
+     * @param numThreads the number of threads applying deltas
+     */
+    ParallelRedo(int numThreads) {
+        if (numThreads <= 1) {
+            workers = new Worker[0];
+            batches = Collections.emptyList();
+            return;
+        }
+        workers = new Worker[numThreads];
+        batches = new ArrayList<>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+            batches.add(new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Redo a delta, after every delta of its page submitted before it.
+     */
+    void submit(PageDelta delta) throws IOException {
+        pages.add(delta.getPageId());
+        if (workers.length == 0) {
+            delta.redo();
+            return;
+        }
+        rethrowFailure();
+        final int i = Math.floorMod(delta.getPageId().hashCode(), workers.length);
+        List<PageDelta> batch = batches.get(i);
+        batch.add(delta);
+        if (batch.size() == BATCH_SIZE) {
+            workers[i].put(batch);
+            batches.set(i, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Wait for every submitted delta to be applied.
+     *
+     * @return the pages redone
+     * @throws IOException if a delta could not be applied
+     */
+    Set<PageId> finish() throws IOException {
+        for (int i = 0; i < workers.length; i++) {
+            if (!batches.get(i).isEmpty()) workers[i].put(batches.get(i));
+            workers[i].put(END);
+        }
+        finished = true;
+        join();
+        rethrowFailure();
+        return pages;
+    }
+
+    /**
+     * Stop the workers without waiting for the deltas queued, if recovery
+     * failed before {@link #finish()}.
+     */
+    @Override
+    public void close() {
+        if (finished) return;
+        finished = true;
+        for (Worker w : workers) w.interrupt();
+        join();
+    }
+
+    private void join() {
+        boolean interrupted = false;
+        for (Worker w : workers) {
+            while (true) {
+                try {
+                    w.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void rethrowFailure() throws IOException {
+        Exception e = failure.get();
+        if (e instanceof IOException) throw (IOException) e;
+        if (e != null) throw new IOException("redo failed", e);
+    }
+
+    private class Worker extends Thread {
+        private final BlockingQueue<List<PageDelta>> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+        Worker(int i) {
+            super("redo-" + i);
+            setDaemon(true);
+        }
+
+        void put(List<PageDelta> batch) throws IOException {
+            try {
+                queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while redoing the log", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<PageDelta> batch = queue.take();
+                    if (batch == END) return;
+                    // after a failure keep taking batches, so the reader
+                    // does not block on a full queue
+                    if (failure.get() != null) continue;
+                    try {
+                        for (PageDelta delta : batch) delta.redo();
+                    } catch (IOException | RuntimeException e) {
+                        e.printStackTrace();
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // recovery gave up
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Adaptive sequential read-ahead for one scan over a HeapFile.
+ * <p>
+ * The scan reports every page it asks for. Once two pages in a row are
+ * consecutive, the pages ahead of the scan are read in one large read and
+ * offered to the buffer pool in the background. The window starts small and
+ * doubles each time the scan catches up with it, up to {@link #MAX_WINDOW}
+ * pages and a quarter of the buffer pool; a jump elsewhere in the file resets
+ * it.
+ *
+ * @see HeapFile#setReadAhead(boolean)
+ */
+class ReadAhead {
+
+    /** Number of pages read by the first read-ahead of a sequential run. */
+    static final int INITIAL_WINDOW = 4;
+    /** Maximum number of pages read ahead at once. */
+    static final int MAX_WINDOW = 64;
+
+    /** background readers shared by all scans */
+    private static final ExecutorService readers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HeapFile file;
+    /** the page the scan asked for last */
+    private int lastPgNo = -2;
+    /** the current window size, 0 until the access is found to be sequential */
+    private int window = 0;
+    /** the first page not read ahead yet */
+    private int next = 0;
+
+    ReadAhead(HeapFile file) {
+        this.file = file;
+    }
+
+    /**
+     * The scan asks for a page.
+     * @param pgNo the number of the page
+     */
+    void pageRequested(int pgNo) {
+        final boolean sequential = pgNo == lastPgNo + 1;
+        lastPgNo = pgNo;
+        if(!sequential){
+            window = 0;
+            next = pgNo + 1;
+            return;
+        }
+
+        final BufferPool pool = Database.getBufferPool();
+        final int maxWindow = Math.min(MAX_WINDOW, pool.getNumPages() / 4);
+        if(maxWindow < 1) return;
+        if(next <= pgNo) next = pgNo + 1;
+        // read the next window once the scan is half way through the last one
+        if(window > 0 && next - pgNo > window / 2) return;
+
+        window = window == 0 ? Math.min(INITIAL_WINDOW, maxWindow) : Math.min(2 * window, maxWindow);
+        final int count = Math.min(window, file.numPages() - next);
+        if(count <= 0) return;
+
+        final int first = next;
+        next += count;
+        // the pool is fixed now: the database may be reset before the read is done
+        readers.execute(() -> read(pool, first, count));
+    }
+
+    private void read(BufferPool pool, int first, int count) {
+        final long writes = file.getWriteCount();
+        try {
+            List<Page> pages = file.readPages(first, count);
+            pool.prefetchPages(pages, () -> file.getWriteCount() == writes);
+        } catch (IOException e) {
+            // read-ahead is only a hint, the scan reads the pages itself
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up
+ * when it needs room for a new one.
+ * <p>
+ * The BufferPool reports every page that enters the pool, every access to
+ * a resident page and every page that leaves the pool; the policy keeps
+ * whatever bookkeeping it needs and names a victim on request. Whether a
+ * page may actually be evicted (e.g. it is dirty and we run NO STEAL) is
+ * decided by the BufferPool: pinned pages are withdrawn from the candidates
+ * with {@link #setEvictable(PageId, boolean)}, and any further test is
+ * handed to {@link #chooseVictim(Predicate)}.
+ * <p>
+ * Implementations are called concurrently by the threads using the
+ * BufferPool and must be thread safe.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * A page has been brought into the buffer pool.
+     * @param pid the id of the new resident page
+     */
+    void pageAdmitted(PageId pid);
+
+    /**
+     * A resident page has been requested again.
+     * @param pid the id of the accessed page
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * A page has left the buffer pool, either because it was evicted or
+     * because it was discarded.
+     * @param pid the id of the removed page
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Allow or forbid evicting a resident page, e.g. because it is pinned.
+     * Pages that may not be evicted are kept out of the policy's candidate
+     * structures, so that {@link #chooseVictim(Predicate)} does not have to
+     * step over them. Pages are evictable when admitted.
+     *
+     * @param pid the id of a resident page
+     * @param evictable whether the page may be chosen as a victim
+     */
+    void setEvictable(PageId pid, boolean evictable);
+
+    /**
+     * Choose the page to evict next. The chosen page is not removed from the
+     * policy; the BufferPool calls {@link #pageRemoved(PageId)} once it has
+     * actually been evicted.
+     *
+     * @param canEvict test for pages that may be evicted right now; pages
+     *        failing the test are skipped
+     * @return the id of the victim page, or null if no resident page passes
+     *         the test
+     */
+    PageId chooseVictim(Predicate<PageId> canEvict);
+}
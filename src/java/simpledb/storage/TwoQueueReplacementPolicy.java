@@ -0,0 +1,130 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Scan resistant 2Q replacement (Johnson and Shasha, full version).
+ * <p>
+ * A page seen for the first time goes to the FIFO queue A1in. When it is
+ * evicted from A1in, only its id is remembered in the ghost queue A1out. A
+ * page that comes back while it is still remembered in A1out has proven to
+ * be hot and goes to the LRU queue Am. Pages touched once by a large scan
+ * therefore pass through A1in without disturbing the working set in Am.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    /** Default share of the pool given to A1in, in percent. */
+    public static final int DEFAULT_IN_PERCENT = 25;
+    /** Default size of A1out relative to the pool size, in percent. */
+    public static final int DEFAULT_OUT_PERCENT = 50;
+
+    private final int maxIn;
+    private final int maxOut;
+
+    /** pages seen once, in arrival order */
+    private final LinkedHashSet<PageId> a1in;
+    /** ids of pages recently evicted from A1in, in eviction order */
+    private final LinkedHashSet<PageId> a1out;
+    /** hot pages, from least to most recently used */
+    private final LinkedHashMap<PageId, Boolean> am;
+    /** pages that may not be evicted for now -> whether they belong to Am */
+    private final Map<PageId, Boolean> held;
+
+    /**
+     * @param numPages the size of the buffer pool this policy serves
+     */
+    public TwoQueueReplacementPolicy(int numPages) {
+        this(numPages, DEFAULT_IN_PERCENT, DEFAULT_OUT_PERCENT);
+    }
+
+    /**
+     * @param numPages the size of the buffer pool this policy serves
+     * @param inPercent the share of the pool reserved for A1in, in percent
+     * @param outPercent the number of ids A1out remembers, in percent of the pool size
+     */
+    public TwoQueueReplacementPolicy(int numPages, int inPercent, int outPercent) {
+        this.maxIn = Math.max(1, numPages * inPercent / 100);
+        this.maxOut = Math.max(1, numPages * outPercent / 100);
+        this.a1in = new LinkedHashSet<PageId>();
+        this.a1out = new LinkedHashSet<PageId>();
+        this.am = new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+        this.held = new HashMap<PageId, Boolean>();
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if(held.containsKey(pid)) return;
+        if(a1in.contains(pid) || am.containsKey(pid)){
+            pageAccessed(pid);
+        }
+        else if(a1out.remove(pid)){
+            am.put(pid, Boolean.TRUE);
+        }
+        else{
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // re-references inside A1in are correlated with the first one
+        // and do not promote the page
+        if(a1in.contains(pid) || held.containsKey(pid)) return;
+        if(am.get(pid) == null) pageAdmitted(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Boolean hot = held.remove(pid);
+        if(a1in.remove(pid) || Boolean.FALSE.equals(hot)){
+            a1out.add(pid);
+            Iterator<PageId> oldest = a1out.iterator();
+            while(a1out.size() > maxOut){
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        else{
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void setEvictable(PageId pid, boolean evictable) {
+        if(evictable){
+            // a released page goes back to the tail of its queue
+            Boolean hot = held.remove(pid);
+            if(hot == null) return;
+            if(hot) am.put(pid, Boolean.TRUE);
+            else a1in.add(pid);
+        }
+        else if(a1in.remove(pid)){
+            held.put(pid, Boolean.FALSE);
+        }
+        else if(am.remove(pid) != null){
+            held.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> canEvict) {
+        PageId victim = null;
+        if(a1in.size() > maxIn){
+            victim = firstEvictable(a1in, canEvict);
+        }
+        if(victim == null){
+            victim = firstEvictable(am.keySet(), canEvict);
+        }
+        if(victim == null){
+            victim = firstEvictable(a1in, canEvict);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(Iterable<PageId> queue, Predicate<PageId> canEvict) {
+        for(PageId pid : queue){
+            if(canEvict.test(pid)) return pid;
+        }
+        return null;
+    }
+}
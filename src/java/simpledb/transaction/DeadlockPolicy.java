@@ -0,0 +1,14 @@
+package simpledb.transaction;
+
+/** How the lock manager deals with deadlocks
+ * <p>DETECT: requests wait, and a victim is aborted in each cycle of the
+ * wait-for graph
+ * <p>WAIT_DIE: an older requester waits for a younger holder, a younger
+ * requester aborts at once
+ * <p>WOUND_WAIT: an older requester aborts a younger holder, a younger
+ * requester waits
+ * <p>Transactions are ordered by their ids: the lower, the older.
+*/
+public enum DeadlockPolicy {
+    DETECT, WAIT_DIE, WOUND_WAIT
+}
@@ -1,250 +1,824 @@
-package simpledb.transaction;
-
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
-import simpledb.storage.PageId;
-
-/**
- * LockManager manages all page locks in this buffer pool
- */
-public class LockManager {
-    // the threshold for waiting for a lock (ms)
-    private static int THRESHOLD = 100;
-    private ConcurrentHashMap<PageId, Set<TwoPhaseLock>> allPageLocks;
-    private ConcurrentHashMap<TransactionId, Set<TwoPhaseLock>> waitForGraph;
-
-    public LockManager(){
-        allPageLocks = new ConcurrentHashMap<PageId, Set<TwoPhaseLock>>();
-        waitForGraph = new ConcurrentHashMap<TransactionId, Set<TwoPhaseLock>>();
-    }
-
-    /**
-     * A transaction acquires a lock on a page.
-     * @param tid the transaction id
-     * @param pid the page id
-     * @param type the lock type
-     */
-    public void getLock(TransactionId tid, PageId pid, LockType type) throws TransactionAbortedException{
-        TwoPhaseLock lock = new TwoPhaseLock(tid, type, pid);
-        synchronized(pid){
-            if(holdsExpectedLock(tid, pid, type)){
-                // the transaction has acquired the lock
-                return;
-            }
-
-            if(type == LockType.EXCLUSIVE){ // this is a writer
-                // release reader lock if has acquires
-                releaseLock(pid, tid);
-
-                // wait for readers or writer to release the page
-                // add wait-for dependency if cannot acquire the lock directly
-                //addDependency(tid, pid);
-                
-                while(getLockType(pid) != LockType.FREE){
-                    /*
-                    if(detectDependency(tid, tid, new HashSet<>())){
-                        throw new TransactionAbortedException();
-                    }
-                    */
-                    long startTime = System.currentTimeMillis();
-                    try {
-                        pid.wait(2*THRESHOLD); // blocking
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    if(System.currentTimeMillis() - startTime > THRESHOLD){
-                        throw new TransactionAbortedException();
-                    }
-                }
-            }
-            else { // this is a reader
-                // wait for writer to release the page
-                // add wait-for dependency if cannot acquire the lock directly
-                //addDependency(tid, pid);
-
-                while(getLockType(pid) == LockType.EXCLUSIVE){
-                    /*
-                    if(detectDependency(tid, tid, new HashSet<>())){
-                        throw new TransactionAbortedException();
-                    }
-                    */
-                    long startTime = System.currentTimeMillis();
-                    try {
-                        pid.wait(2*THRESHOLD); // blocking
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    if(System.currentTimeMillis() - startTime > THRESHOLD){
-                        throw new TransactionAbortedException();
-                    }
-                }
-            }
-            upgradeLock(pid, lock);
-            //removeDependency(tid, pid);
-        }
-    }
-
-    /**
-     * Release all locks that the transaction holds on the page
-     * @param pid the page id
-     * @param tid the transaction id
-     */
-    public void releaseLock(PageId pid, TransactionId tid){
-        
-        synchronized(pid){
-            if(!allPageLocks.containsKey(pid)) return;
-            allPageLocks.get(pid).removeIf(lock -> lock.tid == tid);
-            if(allPageLocks.get(pid).isEmpty()){
-                // wake up all sleep threads, because this page is free now
-                pid.notifyAll();
-            }
-        }
-    }
-
-    /**
-     * release all locks a transaction hold
-     * @param tid the transaction id
-     */
-    public void releaseAllLock(TransactionId tid){
-        for(PageId pid : allPageLocks.keySet()){
-            releaseLock(pid, tid);
-        }
-    }
-
-    /**
-     * @param tid the transaction id
-     * @param pid the page id
-     * @return If a transaction holds any lock on the page
-     */
-    public LockType holdsLock(TransactionId tid, PageId pid){
-        synchronized(pid){
-            if(!allPageLocks.containsKey(pid)) return LockType.FREE;
-            
-            for(TwoPhaseLock lock : allPageLocks.get(pid)){
-                if(lock.tid == tid) return lock.type;
-            }
-            return LockType.FREE;
-        }
-    }
-
-    /**
-     * @param tid the transaction id
-     * @param pid the page id
-     * @param expectedType the desired lock type
-     * @return if the transaction holds expected type (or higher) lock on the page
-     */
-    private boolean holdsExpectedLock(TransactionId tid, PageId pid, LockType expectedType){
-        synchronized(pid){
-            if(!allPageLocks.containsKey(pid)) return false;
-    
-            LockType currentType = LockType.FREE;
-            for(TwoPhaseLock lock : allPageLocks.get(pid)){
-                if(lock.tid == tid && lock.type.higherThanOrEqual(currentType)){
-                    currentType = lock.type;
-                }
-            }
-            return currentType.higherThanOrEqual(expectedType);
-        }
-    }
-
-    /**
-     * add a lock to a page. 
-     * @param pid the page id
-     * @param lock the 2 phase lock
-     */
-    private void upgradeLock(PageId pid, TwoPhaseLock lock){
-        synchronized(pid){
-            if(holdsExpectedLock(lock.tid, pid, lock.type)){
-                return;
-            }
-            
-            if(!allPageLocks.containsKey(pid)){
-                allPageLocks.put(pid, new HashSet<TwoPhaseLock>());
-            }
-            
-            if (lock.type == LockType.EXCLUSIVE){
-                // release reader lock if acquired
-                allPageLocks.get(pid).removeIf(x -> x.tid == lock.tid);
-            }
-            
-            allPageLocks.get(pid).add(lock);
-        }
-    }
-
-    /**
-     * @param pid the id of the page
-     */
-    private LockType getLockType(PageId pid){
-        synchronized(pid){
-            if(!allPageLocks.containsKey(pid) || allPageLocks.get(pid).isEmpty())
-                return LockType.FREE;
-            
-            for(TwoPhaseLock lock : allPageLocks.get(pid)){
-                if(lock.type == LockType.EXCLUSIVE)
-                return LockType.EXCLUSIVE;
-            }
-            return LockType.SHARED;
-        }
-    }
-
-    /**
-     * Add wait-for dependency from tid to all lock holders of pid
-     * @param tid the transaction id
-     * @param pid the page id
-     */
-    private void addDependency(TransactionId tid, PageId pid){
-        if(allPageLocks.containsKey(pid)){
-            if(!waitForGraph.containsKey(tid)){
-                waitForGraph.put(tid, new HashSet<TwoPhaseLock>());
-            }
-            waitForGraph.get(tid).addAll(allPageLocks.get(pid));
-        }
-    }
-
-    /**
-     * If there is a direct wait-for dependency from start to end, remove it
-     * @param start The id of start transaction 
-     * @param end The id of end transaction
-     */
-    private void removeDependency(TransactionId tid,PageId pid){
-        synchronized(tid){
-            if(waitForGraph.containsKey(tid)){
-                waitForGraph.get(tid).removeIf(x -> x.pid == pid);
-            }
-        }
-    }
-
-    public void removeAllDependency(TransactionId tid){
-        synchronized(tid){
-            waitForGraph.remove(tid);
-            for(TransactionId start : waitForGraph.keySet()){
-                waitForGraph.get(start).removeIf(x -> x.tid == tid);
-            }
-        }
-    }
-
-
-
-    /**
-     * Detected whether there is a wait-for path between two transactions
-     * @param start the id of start transaction
-     * @param end the id of end transaction
-     * @param detected all start transactions that have been detected
-     * @return
-     */
-    private boolean detectDependency(TransactionId start, TransactionId end, Set<TransactionId> detected){
-        synchronized(waitForGraph){
-            if(!waitForGraph.containsKey(start)) return false;
-            if(detected.contains(start)) return false;
-            
-            detected.add(start);
-            for(TwoPhaseLock lock : waitForGraph.get(start)){
-                if(lock.tid == end) return true;
-                if(detectDependency(lock.tid, end, detected)) return true;
-            }
-            return false;
-        }
-    }
-}
+package simpledb.transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+/**
+ * LockManager manages all page locks in this buffer pool
+ * <p>
+ * Each page has a queue of lock requests in arrival order, the granted ones
+ * and the waiting ones. A request is granted once it is compatible with the
+ * granted locks of other transactions and with the requests waiting ahead
+ * of it, so a writer is not starved by a stream of readers, and the readers
+ * queued behind one writer are granted together when it releases the page.
+ * A transaction upgrading its lock queues ahead of the waiting requests.
+ * Waiting threads park, and are only woken up when their request is
+ * granted or aborted. The queues are kept in partitions of the lock table,
+ * chosen by the hash of the page id, each with its own latch.
+ * <p>
+ * Tables are locked too, next to their pages: before locking a page, a
+ * transaction takes the intention lock on its table, INTENTION_SHARED to
+ * read it or INTENTION_EXCLUSIVE to write it. Once a transaction holds more
+ * page locks on a table than the escalation threshold, it escalates: it
+ * locks the whole table SHARED, or EXCLUSIVE if it writes some of its
+ * pages, and releases its page read locks, which the table lock covers. Its
+ * later requests on the table's pages are granted by the table lock, so a
+ * large scan holds one lock rather than one per page.
+ * <p>
+ * Records can be locked below their pages, see {@link #getRecordLock}: the
+ * transaction then takes the intention lock on the page and on its table,
+ * so that two transactions writing different records of a page do not wait
+ * for each other, while a reader locking the whole page waits for both.
+ * <p>
+ * Deadlocks are found on a wait-for graph. While lock requests wait, a
+ * daemon thread wakes up every detection interval, builds the graph from the
+ * waiting requests and the requests they wait for, and aborts a victim in
+ * each cycle: its youngest transaction, which has likely done the least work.
+ * A request that waits longer than the timeout is aborted as well, as a
+ * fallback for waits the graph does not show.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them by
+ * ordering transactions by age, see {@link DeadlockPolicy}. No graph is
+ * built then: a request that conflicts either waits or aborts a transaction
+ * right away, whichever keeps every wait from a younger transaction for an
+ * older one (wait-die) or the other way round (wound-wait).
+ */
+public class LockManager {
+    /** Default of {@link #setTimeout(long)}, in ms. */
+    public static final long DEFAULT_TIMEOUT = 1000;
+    /** Default of {@link #setDetectionInterval(long)}, in ms. */
+    public static final long DEFAULT_DETECTION_INTERVAL = 10;
+    /** Default of {@link #setEscalationThreshold(int)}. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+    /** Number of partitions of the lock table, a power of two. */
+    private static final int PARTITIONS = 64;
+
+    /** the lock table, partitioned by the hash of the record, page or table id */
+    private final Partition[] partitions;
+    /**
+     * the pages each transaction holds locks on or wrote under a table lock,
+     * by table id, so it completes in time of its locks
+     */
+    private final ConcurrentHashMap<TransactionId, Map<Integer, Set<PageId>>> lockedPages = new ConcurrentHashMap<>();
+    /** the tables each transaction holds locks on */
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> lockedTables = new ConcurrentHashMap<>();
+    /** the records each transaction holds locks on, by page */
+    private final ConcurrentHashMap<TransactionId, Map<PageId, Set<RecordId>>> lockedRecords = new ConcurrentHashMap<>();
+    /** the lock requests that wait; guarded by itself */
+    private final Set<LockRequest> waiters = new HashSet<>();
+    /** the deadlock detector, running while requests wait; guarded by waiters */
+    private Thread detector;
+    /** the transactions wounded by older ones under wound-wait, until they complete */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile long detectionInterval = DEFAULT_DETECTION_INTERVAL;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** A part of the lock table: the request queues of the pages hashing to it. */
+    private static class Partition {
+        /** guards the queues and the requests in them */
+        final ReentrantLock latch = new ReentrantLock();
+        /**
+         * the requests on each record, page or table, in arrival order; one without
+         * any has no queue
+         */
+        final HashMap<Object, List<LockRequest>> queues = new HashMap<>();
+    }
+
+    /** The key of a whole table in the lock table, next to its pages' ids. */
+    private static class TableResource {
+        final int tableId;
+
+        TableResource(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            return obj instanceof TableResource && ((TableResource) obj).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode(){
+            return Integer.hashCode(tableId);
+        }
+    }
+
+    /** A lock request, granted or waiting in its page's or table's queue. */
+    private static class LockRequest {
+        final TransactionId tid;
+        /** guarded by the partition latch */
+        LockType type;
+        /** the record id, the page id, or the table's resource */
+        final Object resource;
+        /** the requesting thread, unparked when the request is granted or aborted */
+        final Thread thread;
+        /** set once the request is granted; written under the partition latch */
+        volatile boolean granted = false;
+        /** set by the detector to abort the request */
+        volatile boolean victim = false;
+
+        LockRequest(TransactionId tid, LockType type, Object resource) {
+            this.tid = tid;
+            this.type = type;
+            this.resource = resource;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    public LockManager(){
+        partitions = new Partition[PARTITIONS];
+        for(int i = 0; i < PARTITIONS; i++){
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Set how deadlocks are dealt with. Only change it while no lock request
+     * waits.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy){
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy(){
+        return policy;
+    }
+
+    /**
+     * Set how long a lock request may wait before its transaction is aborted,
+     * in ms. With 0, requests wait until they are granted or chosen to break
+     * a deadlock.
+     */
+    public void setTimeout(long timeout){
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set how often the wait-for graph is searched for deadlocks while lock
+     * requests wait, in ms. With 0, deadlocks are only broken by the timeout.
+     */
+    public void setDetectionInterval(long detectionInterval){
+        this.detectionInterval = detectionInterval;
+    }
+
+    /**
+     * Set how many page locks a transaction may hold on a table before it
+     * escalates to a table lock. With 0, it never escalates.
+     */
+    public void setEscalationThreshold(int escalationThreshold){
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * A transaction acquires a lock on a page.
+     * @param tid the transaction id
+     * @param pid the page id
+     * @param type the lock type
+     */
+    public void getLock(TransactionId tid, PageId pid, LockType type) throws TransactionAbortedException{
+        TableResource table = new TableResource(pid.getTableId());
+        if(pageType(held(tid, table)).higherThanOrEqual(type)){
+            // the table lock covers the page; remember the pages written
+            if(writes(type)) pagesOf(tid, table.tableId).add(pid);
+            return;
+        }
+        acquire(tid, table, intentionFor(type));
+        acquire(tid, pid, type);
+
+        final int threshold = escalationThreshold;
+        if(threshold > 0 && pagesOf(tid, table.tableId).size() > threshold){
+            escalate(tid, table);
+        }
+    }
+
+    /**
+     * A transaction acquires a lock on a record, after the intention lock
+     * on its page and table.
+     * @param tid the transaction id
+     * @param rid the record id
+     * @param type the lock type, SHARED or EXCLUSIVE
+     */
+    public void getRecordLock(TransactionId tid, RecordId rid, LockType type) throws TransactionAbortedException{
+        PageId pid = rid.getPageId();
+        getLock(tid, pid, intentionFor(type));
+        if(pageType(holdsLock(tid, pid)).higherThanOrEqual(type)){
+            // the page lock covers the record
+            return;
+        }
+        acquire(tid, rid, type);
+    }
+
+    /**
+     * @return the intention lock to take on the container of a page or
+     * record locked with the given type
+     */
+    private static LockType intentionFor(LockType type){
+        return writes(type) ? LockType.INTENTION_EXCLUSIVE : LockType.INTENTION_SHARED;
+    }
+
+    /**
+     * @return if the holder of a lock of the given type may write
+     */
+    private static boolean writes(LockType type){
+        return type.higherThanOrEqual(LockType.INTENTION_EXCLUSIVE);
+    }
+
+    /**
+     * Lock a whole table instead of its pages: SHARED, or EXCLUSIVE if the
+     * transaction writes some of them. Its page read locks are released,
+     * its page write locks are kept to remember the pages written.
+     */
+    private void escalate(TransactionId tid, TableResource table) throws TransactionAbortedException{
+        Set<PageId> pages = pagesOf(tid, table.tableId);
+        LockType type = LockType.SHARED;
+        for(PageId pid : pages){
+            if(writes(held(tid, pid))){
+                type = LockType.EXCLUSIVE;
+                break;
+            }
+        }
+        acquire(tid, table, type);
+        for(PageId pid : new ArrayList<>(pages)){
+            if(held(tid, pid) == LockType.SHARED) releaseLock(pid, tid);
+        }
+    }
+
+    /**
+     * A transaction acquires a lock on a record, a page or a table,
+     * upgrading the lock it holds on it if any.
+     * @param resource the record id, the page id, or the table's resource
+     */
+    private void acquire(TransactionId tid, Object resource, LockType type) throws TransactionAbortedException{
+        Partition part = partitionOf(resource);
+        LockRequest request;
+        part.latch.lock();
+        try {
+            List<LockRequest> queue = part.queues.get(resource);
+            LockType held = queue == null ? LockType.FREE : heldType(queue, tid);
+            if(held.higherThanOrEqual(type)){
+                // the transaction has acquired the lock
+                return;
+            }
+            if(wounded.contains(tid)){
+                throw new TransactionAbortedException();
+            }
+
+            // a writer waits for readers and writer to release the page,
+            // a reader for the writer. A reader upgrading keeps its read
+            // lock meanwhile: two of them deadlock, and one is aborted
+            if(queue == null){
+                queue = new ArrayList<>(2);
+                part.queues.put(resource, queue);
+            }
+            request = new LockRequest(tid, held.join(type), resource);
+            enqueue(queue, request);
+            if(blockers(queue, request).isEmpty()){
+                grant(queue, request);
+                return;
+            }
+        } finally {
+            part.latch.unlock();
+        }
+        await(part, request);
+    }
+
+    /**
+     * Wait until the request is granted, or abort it.
+     */
+    private void await(Partition part, LockRequest r) throws TransactionAbortedException{
+        addWaiter(r);
+        try {
+            final long timeout = this.timeout;
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(true){
+                part.latch.lock();
+                try {
+                    if(r.granted) return;
+                    if(r.victim || wounded.contains(r.tid)){
+                        // chosen to break a deadlock, or wounded by an older one
+                        throw new TransactionAbortedException();
+                    }
+                    Set<TransactionId> blockers = blockers(part.queues.get(r.resource), r);
+                    final DeadlockPolicy policy = this.policy;
+                    if(policy == DeadlockPolicy.WAIT_DIE && holdsOlder(blockers, r.tid)){
+                        // die rather than wait for an older transaction
+                        throw new TransactionAbortedException();
+                    }
+                    if(policy == DeadlockPolicy.WOUND_WAIT){
+                        wound(blockers, r);
+                    }
+                } finally {
+                    part.latch.unlock();
+                }
+                if(timeout > 0){
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0){
+                        throw new TransactionAbortedException();
+                    }
+                    LockSupport.parkNanos(this, left); // blocking
+                } else {
+                    LockSupport.park(this); // blocking
+                }
+                // an interrupt does not end the wait; clear it, or park
+                // would not block any more
+                Thread.interrupted();
+            }
+        } finally {
+            cancel(part, r);
+            removeWaiter(r);
+        }
+    }
+
+    /**
+     * Remove a request from its queue unless it was granted meanwhile.
+     */
+    private void cancel(Partition part, LockRequest r){
+        part.latch.lock();
+        try {
+            if(r.granted) return;
+            List<LockRequest> queue = part.queues.get(r.resource);
+            if(queue == null || !queue.remove(r)) return;
+            // the requests behind it may have waited for it only
+            grantWaiters(queue);
+            if(queue.isEmpty()) part.queues.remove(r.resource);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * Release all locks that the transaction holds on the page
+     * @param pid the page id
+     * @param tid the transaction id
+     */
+    public void releaseLock(PageId pid, TransactionId tid){
+        Map<Integer, Set<PageId>> tables = lockedPages.get(tid);
+        if(tables != null){
+            Set<PageId> pages = tables.get(pid.getTableId());
+            if(pages != null) pages.remove(pid);
+        }
+        release(tid, pid);
+    }
+
+    /**
+     * Release the lock that the transaction holds on a record, a page or a
+     * table.
+     * @param resource the record id, the page id, or the table's resource
+     */
+    private void release(TransactionId tid, Object resource){
+        Partition part = partitionOf(resource);
+        part.latch.lock();
+        try {
+            List<LockRequest> queue = part.queues.get(resource);
+            if(queue == null) return;
+            if(queue.removeIf(r -> r.granted && r.tid == tid)){
+                // grant the requests that no longer wait, and wake up only them
+                grantWaiters(queue);
+            }
+            if(queue.isEmpty()) part.queues.remove(resource);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * release all locks a transaction hold
+     * @param tid the transaction id
+     */
+    public void releaseAllLock(TransactionId tid){
+        Map<PageId, Set<RecordId>> records = lockedRecords.remove(tid);
+        if(records != null){
+            for(Set<RecordId> rids : records.values()){
+                for(RecordId rid : rids){
+                    release(tid, rid);
+                }
+            }
+        }
+        Map<Integer, Set<PageId>> tables = lockedPages.remove(tid);
+        if(tables != null){
+            for(Set<PageId> pages : tables.values()){
+                for(PageId pid : pages){
+                    release(tid, pid);
+                }
+            }
+        }
+        // the containers last, so that no lock is left without their intention lock
+        Set<Integer> tableIds = lockedTables.remove(tid);
+        if(tableIds != null){
+            for(int tableId : tableIds){
+                release(tid, new TableResource(tableId));
+            }
+        }
+        wounded.remove(tid);
+    }
+
+    /**
+     * @param tid the transaction id
+     * @param pid the page id
+     * @return the lock a transaction holds on the page, or the one its lock
+     * on the table implies
+     */
+    public LockType holdsLock(TransactionId tid, PageId pid){
+        return held(tid, pid).join(pageType(held(tid, new TableResource(pid.getTableId()))));
+    }
+
+    /**
+     * @param tid the transaction id
+     * @param tableId the table id
+     * @return the lock a transaction holds on the whole table
+     */
+    public LockType holdsTableLock(TransactionId tid, int tableId){
+        return held(tid, new TableResource(tableId));
+    }
+
+    /**
+     * @param tid the transaction id
+     * @param type the lowest lock type of interest
+     * @return the pages on which the transaction was granted a lock of type
+     * or higher, or which it wrote under a table lock
+     */
+    public List<PageId> lockedPages(TransactionId tid, LockType type){
+        Map<Integer, Set<PageId>> tables = lockedPages.get(tid);
+        List<PageId> locked = new ArrayList<>();
+        if(tables == null) return locked;
+        for(Set<PageId> pages : tables.values()){
+            for(PageId pid : pages){
+                LockType held = holdsLock(tid, pid);
+                if(held != LockType.FREE && held.higherThanOrEqual(type)){
+                    locked.add(pid);
+                }
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * @param tid the transaction id
+     * @param pid the page id
+     * @param type the lowest lock type of interest
+     * @return the records of the page on which the transaction was granted
+     * a lock of type or higher
+     */
+    public List<RecordId> lockedRecords(TransactionId tid, PageId pid, LockType type){
+        Map<PageId, Set<RecordId>> pages = lockedRecords.get(tid);
+        Set<RecordId> rids = pages == null ? null : pages.get(pid);
+        List<RecordId> locked = new ArrayList<>();
+        if(rids == null) return locked;
+        for(RecordId rid : rids){
+            LockType held = held(tid, rid);
+            if(held != LockType.FREE && held.higherThanOrEqual(type)){
+                locked.add(rid);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * @param pid the page id
+     * @param type the lowest lock type of interest
+     * @return the transactions granted a lock of type or higher on records of
+     * the page, each with those records
+     */
+    public Map<TransactionId, List<RecordId>> recordLockers(PageId pid, LockType type){
+        Map<TransactionId, List<RecordId>> lockers = new HashMap<>();
+        for(TransactionId tid : lockedRecords.keySet()){
+            List<RecordId> rids = lockedRecords(tid, pid, type);
+            if(!rids.isEmpty()) lockers.put(tid, rids);
+        }
+        return lockers;
+    }
+
+    /**
+     * @return the lock the transaction was granted on the record, page or
+     * table
+     */
+    private LockType held(TransactionId tid, Object resource){
+        Partition part = partitionOf(resource);
+        part.latch.lock();
+        try {
+            List<LockRequest> queue = part.queues.get(resource);
+            return queue == null ? LockType.FREE : heldType(queue, tid);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * @return the lock on each page of a table that a lock on the table
+     * implies
+     */
+    private static LockType pageType(LockType tableType){
+        switch (tableType) {
+            case SHARED:
+            case SHARED_INTENTION_EXCLUSIVE:
+                return LockType.SHARED;
+            case EXCLUSIVE:
+                return LockType.EXCLUSIVE;
+            default:
+                return LockType.FREE;
+        }
+    }
+
+    /**
+     * @return the pages of a table the transaction holds locks on or wrote
+     */
+    private Set<PageId> pagesOf(TransactionId tid, int tableId){
+        return lockedPages.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(tableId, k -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * Returns the partition of the lock table the queue of a record, a page
+     * or a table is kept in.
+     */
+    private Partition partitionOf(Object resource){
+        int h = resource.hashCode();
+        return partitions[(h ^ (h >>> 16)) & (PARTITIONS - 1)];
+    }
+
+    /**
+     * @return the type of the lock the transaction was granted in the
+     * queue, FREE if none. The caller holds the partition latch.
+     */
+    private static LockType heldType(List<LockRequest> queue, TransactionId tid){
+        for(LockRequest r : queue){
+            if(r.granted && r.tid == tid) return r.type;
+        }
+        return LockType.FREE;
+    }
+
+    /**
+     * Add a request to its page's queue: at the tail, or ahead of the
+     * waiting requests if the transaction upgrades a lock it holds, since
+     * they wait for it already. The caller holds the partition latch.
+     */
+    private static void enqueue(List<LockRequest> queue, LockRequest r){
+        if(heldType(queue, r.tid) != LockType.FREE){
+            for(int i = 0; i < queue.size(); i++){
+                if(!queue.get(i).granted){
+                    queue.add(i, r);
+                    return;
+                }
+            }
+        }
+        queue.add(r);
+    }
+
+    /**
+     * Returns the other transactions a request has to wait for: those
+     * granted a conflicting lock on the resource, and those waiting ahead of
+     * it with a conflicting request. The caller holds the partition latch.
+     */
+    private static Set<TransactionId> blockers(List<LockRequest> queue, LockRequest r){
+        Set<TransactionId> holders = new HashSet<>();
+        boolean ahead = true;
+        for(LockRequest other : queue){
+            if(other == r){
+                ahead = false;
+                continue;
+            }
+            if(other.tid == r.tid || !(other.granted || ahead)) continue;
+            if(!r.type.compatibleWith(other.type)){
+                holders.add(other.tid);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Grant a request, and wake up its thread. A transaction keeps a single
+     * granted request per resource, of the type joining both. The
+     * caller holds the partition latch.
+     */
+    private void grant(List<LockRequest> queue, LockRequest r){
+        LockRequest held = null;
+        for(LockRequest other : queue){
+            if(other != r && other.granted && other.tid == r.tid) held = other;
+        }
+        r.granted = true;
+        if(held != null){
+            r.type = r.type.join(held.type);
+            queue.remove(held.type.higherThanOrEqual(r.type) ? r : held);
+        }
+        if(r.resource instanceof RecordId){
+            RecordId rid = (RecordId) r.resource;
+            lockedRecords.computeIfAbsent(r.tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(rid.getPageId(), k -> ConcurrentHashMap.newKeySet()).add(rid);
+        } else if(r.resource instanceof PageId){
+            PageId pid = (PageId) r.resource;
+            pagesOf(r.tid, pid.getTableId()).add(pid);
+        } else {
+            lockedTables.computeIfAbsent(r.tid, k -> ConcurrentHashMap.newKeySet())
+                .add(((TableResource) r.resource).tableId);
+        }
+        if(r.thread != Thread.currentThread()){
+            LockSupport.unpark(r.thread);
+        }
+    }
+
+    /**
+     * Grant the waiting requests of the queue that no longer wait for any
+     * other, in order; compatible readers are granted together. The caller
+     * holds the partition latch.
+     */
+    private void grantWaiters(List<LockRequest> queue){
+        for(LockRequest r : new ArrayList<>(queue)){
+            if(!r.granted && blockers(queue, r).isEmpty()){
+                grant(queue, r);
+            }
+        }
+    }
+
+    /**
+     * @return if one of the transactions is older than tid
+     */
+    private static boolean holdsOlder(Set<TransactionId> holders, TransactionId tid){
+        for(TransactionId holder : holders){
+            if(holder.getId() < tid.getId()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Abort the transactions younger than the waiting request's. A wounded
+     * transaction finds out at its next lock request, or right away if it
+     * waits; until it releases its locks, w waits.
+     * The caller holds the latch of w's partition.
+     */
+    private void wound(Set<TransactionId> holders, LockRequest w){
+        boolean any = false;
+        for(TransactionId holder : holders){
+            if(holder.getId() > w.tid.getId()){
+                any |= wounded.add(holder);
+            }
+        }
+        if(any){
+            // wake up the wounded waiting on any page; they take their
+            // partition's latch once they run, after we release ours
+            synchronized(waiters){
+                for(LockRequest r : waiters){
+                    if(wounded.contains(r.tid)) LockSupport.unpark(r.thread);
+                }
+            }
+        }
+    }
+
+    private void addWaiter(LockRequest w){
+        synchronized(waiters){
+            waiters.add(w);
+            if(detector == null && detectionInterval > 0 && policy == DeadlockPolicy.DETECT){
+                detector = new Thread(this::runDetector, "deadlock-detector");
+                detector.setDaemon(true);
+                detector.start();
+            }
+        }
+    }
+
+    private void removeWaiter(LockRequest w){
+        synchronized(waiters){
+            waiters.remove(w);
+        }
+    }
+
+    /**
+     * The deadlock detector's loop. It stops once no request waits, the
+     * next waiting request starts another one.
+     */
+    private void runDetector(){
+        while(true){
+            try {
+                Thread.sleep(Math.max(detectionInterval, 1));
+            } catch (InterruptedException e) {
+                synchronized(waiters){
+                    detector = null;
+                }
+                return;
+            }
+            List<LockRequest> waiting;
+            synchronized(waiters){
+                if(waiters.isEmpty() || detectionInterval <= 0 || policy != DeadlockPolicy.DETECT){
+                    detector = null;
+                    return;
+                }
+                waiting = new ArrayList<>(waiters);
+            }
+            for(LockRequest victim : findVictims(waiting)){
+                victim.victim = true;
+                LockSupport.unpark(victim.thread);
+            }
+        }
+    }
+
+    /**
+     * Returns the transactions a request waits for, or null if it no longer
+     * waits.
+     */
+    private Set<TransactionId> waitsFor(LockRequest w){
+        Partition part = partitionOf(w.resource);
+        part.latch.lock();
+        try {
+            List<LockRequest> queue = part.queues.get(w.resource);
+            if(w.victim || w.granted || queue == null || !queue.contains(w)) return null;
+            return blockers(queue, w);
+        } finally {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * Build the wait-for graph of the waiting requests, and choose the
+     * requests to abort so that no cycle is left in it.
+     */
+    private List<LockRequest> findVictims(List<LockRequest> waiting){
+        Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+        Map<TransactionId, List<LockRequest>> requests = new HashMap<>();
+        for(LockRequest w : waiting){
+            Set<TransactionId> holders = waitsFor(w);
+            if(holders == null) continue;
+            waitsFor.computeIfAbsent(w.tid, k -> new HashSet<>()).addAll(holders);
+            requests.computeIfAbsent(w.tid, k -> new ArrayList<>()).add(w);
+        }
+
+        List<LockRequest> victims = new ArrayList<>();
+        List<TransactionId> cycle;
+        while((cycle = findCycle(waitsFor)) != null){
+            TransactionId youngest = cycle.get(0);
+            for(TransactionId tid : cycle){
+                if(tid.getId() > youngest.getId()) youngest = tid;
+            }
+            // the graph was not built at a single instant; only abort if
+            // the cycle is still there, which it is if it is a deadlock
+            if(stillWaiting(cycle, requests)){
+                victims.addAll(requests.get(youngest));
+            }
+            // without its edges, no cycle goes through the victim any more
+            waitsFor.remove(youngest);
+        }
+        return victims;
+    }
+
+    /**
+     * Returns whether each transaction of a cycle still waits for the next.
+     */
+    private boolean stillWaiting(List<TransactionId> cycle, Map<TransactionId, List<LockRequest>> requests){
+        for(int i = 0; i < cycle.size(); i++){
+            TransactionId next = cycle.get((i + 1) % cycle.size());
+            boolean waits = false;
+            for(LockRequest w : requests.get(cycle.get(i))){
+                Set<TransactionId> holders = waitsFor(w);
+                waits |= holders != null && holders.contains(next);
+            }
+            if(!waits) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the transactions of a cycle in the wait-for graph, in wait
+     * order, or null if there is none.
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> waitsFor){
+        Set<TransactionId> done = new HashSet<>();
+        for(TransactionId start : waitsFor.keySet()){
+            List<TransactionId> cycle = findCycle(waitsFor, start, new ArrayList<>(), done);
+            if(cycle != null) return cycle;
+        }
+        return null;
+    }
+
+    /**
+     * Depth first search from node, which path leads to.
+     * @param done the nodes from which no cycle can be reached
+     */
+    private static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> waitsFor,
+            TransactionId node, List<TransactionId> path, Set<TransactionId> done){
+        int onPath = path.indexOf(node);
+        if(onPath >= 0) return new ArrayList<>(path.subList(onPath, path.size()));
+        if(done.contains(node)) return null;
+
+        path.add(node);
+        for(TransactionId next : waitsFor.getOrDefault(node, Collections.emptySet())){
+            List<TransactionId> cycle = findCycle(waitsFor, next, path, done);
+            if(cycle != null) return cycle;
+        }
+        path.remove(path.size() - 1);
+        done.add(node);
+        return null;
+    }
+}
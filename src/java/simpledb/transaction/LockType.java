@@ -1,30 +1,75 @@
-package simpledb.transaction;
-
-/** Lock types in 2PL 
- * <p>FREE: neither readers nor writer acquire the lock
- * <p>SHARED: one or more readers acquire the lock, no writer 
- * <p>EXCLUSIVE: just one writer acquire the lock
-*/
-public enum LockType {
-    FREE, SHARED, EXCLUSIVE;
-
-    /**
-     * @param that another lock type
-     * @return if this type is higher than or equal to that
-     */
-    public boolean higherThanOrEqual(LockType that){
-        if(that == FREE) return true;
-        if(that == SHARED) return this != FREE;
-        else return this == EXCLUSIVE;
-    }
-
-    @Override
-    public String toString(){
-        switch (this) {
-            case FREE: return "FREE";
-            case SHARED: return "SHARED";
-            case EXCLUSIVE: return "EXCLUSIVE";
-            default: return "???";
-        }
-    }
-}
+package simpledb.transaction;
+
+/** Lock types in 2PL
+ * <p>FREE: neither readers nor writer acquire the lock
+ * <p>SHARED: one or more readers acquire the lock, no writer
+ * <p>EXCLUSIVE: just one writer acquire the lock
+ * <p>The intention types are only taken on tables, before locking one of
+ * their pages:
+ * <p>INTENTION_SHARED: the holder reads some pages of the table
+ * <p>INTENTION_EXCLUSIVE: the holder writes some pages of the table
+ * <p>SHARED_INTENTION_EXCLUSIVE: the holder reads the whole table, and
+ * writes some of its pages
+*/
+public enum LockType {
+    // the rights of each type: 1 intention to read, 2 intention to write,
+    // 4 read all, 8 write all
+    FREE(0), SHARED(1 | 4), EXCLUSIVE(1 | 2 | 4 | 8),
+    INTENTION_SHARED(1), INTENTION_EXCLUSIVE(1 | 2), SHARED_INTENTION_EXCLUSIVE(1 | 2 | 4);
+
+    private final int rights;
+
+    LockType(int rights){
+        this.rights = rights;
+    }
+
+    /**
+     * @param that another lock type
+     * @return if this type is higher than or equal to that, i.e. holding
+     * this, that need not be acquired
+     */
+    public boolean higherThanOrEqual(LockType that){
+        return (this.rights & that.rights) == that.rights;
+    }
+
+    /**
+     * @param that another lock type
+     * @return the lowest type higher than or equal to both, which a holder
+     * of one of them upgrades to when requesting the other
+     */
+    public LockType join(LockType that){
+        int joined = this.rights | that.rights;
+        for(LockType type : values()){
+            if(type.rights == joined) return type;
+        }
+        throw new IllegalStateException("no lock type joins " + this + " and " + that);
+    }
+
+    /**
+     * @param that the lock type another transaction holds
+     * @return if this type can be granted meanwhile
+     */
+    public boolean compatibleWith(LockType that){
+        if(this == FREE || that == FREE) return true;
+        switch (this) {
+            case INTENTION_SHARED: return that != EXCLUSIVE;
+            case INTENTION_EXCLUSIVE: return that == INTENTION_SHARED || that == INTENTION_EXCLUSIVE;
+            case SHARED: return that == INTENTION_SHARED || that == SHARED;
+            case SHARED_INTENTION_EXCLUSIVE: return that == INTENTION_SHARED;
+            default: return false;
+        }
+    }
+
+    @Override
+    public String toString(){
+        switch (this) {
+            case FREE: return "FREE";
+            case SHARED: return "SHARED";
+            case EXCLUSIVE: return "EXCLUSIVE";
+            case INTENTION_SHARED: return "INTENTION_SHARED";
+            case INTENTION_EXCLUSIVE: return "INTENTION_EXCLUSIVE";
+            case SHARED_INTENTION_EXCLUSIVE: return "SHARED_INTENTION_EXCLUSIVE";
+            default: return "???";
+        }
+    }
+}
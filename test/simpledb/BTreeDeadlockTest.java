@@ -15,6 +15,10 @@ import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
 import org.junit.Before;
 import org.junit.Test;
 import junit.framework.JUnit4TestAdapter;
@@ -145,6 +149,42 @@ public class BTreeDeadlockTest extends SimpleDbTestBase {
 		System.out.println("testReadWriteDeadlock resolved deadlock");
 	}
 
+	/**
+	 * An insert into a full leaf must not hold the leaf while it waits for the pages
+	 * above it, or a transaction splitting the same leaf from the root down would
+	 * deadlock with it.
+	 */
+	@Test public void testSplitReleasesFullLeaf() throws Exception {
+		// only a deadlock may abort either transaction, however long the splits take
+		bp.getLockManager().setTimeout(0);
+		// a key well away from those setUp made room for, so its leaf is full
+		int item;
+		do {
+			item = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+		} while(Math.abs(item - item1) < 1000 || Math.abs(item - item2) < 1000);
+		TransactionId tid1 = new TransactionId();
+		TransactionId tid2 = new TransactionId();
+
+		// tid1 finds its leaf full, and then waits for the root pointer tid2 reads
+		bp.getPage(tid2, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeWriter writer1 = startWriter(tid1, item, 1);
+		while(LockSupport.getBlocker(writer1) != bp.getLockManager()) {
+			assertNull(writer1.getError());
+			assertFalse("the leaf had room", writer1.succeeded());
+			Thread.sleep(10);
+		}
+
+		// tid2 splits the same leaf; had tid1 kept it, the detector would abort tid2,
+		// the younger one
+		bp.insertTuple(tid2, bf.getId(), BTreeUtility.getBTreeTuple(item, 2));
+		bp.transactionComplete(tid2);
+
+		writer1.join(100 * WAIT_INTERVAL);
+		assertNull(writer1.getError());
+		assertTrue(writer1.succeeded());
+		bp.transactionComplete(tid1);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -176,6 +177,30 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testInsertReleasesInternalPages() throws Exception {
+		// a tree of a few leaf pages under one internal root
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				new TransactionId(), rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		// the root has room for a new entry, so neither the root pointer nor,
+		// unless it split, the root stays locked
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE/2, 2);
+		List<Page> dirty = bf.insertTuple(tid, t);
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		boolean split = false;
+		for(Page p : dirty) {
+			assertTrue(Database.getBufferPool().holdsLock(tid, p.getId()));
+			split |= ((BTreePageId) p.getId()).pgcateg() == BTreePageId.INTERNAL;
+		}
+		assertEquals(split, Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
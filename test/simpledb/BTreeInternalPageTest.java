@@ -8,7 +8,9 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -321,6 +323,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(page.iterator().next().getLeftChild(), page.findChild(null));
+
+		// leave empty slots between the keys
+		Iterator<BTreeEntry> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		for (int key = 0; key < 70000; key += 500) {
+			Field f = new IntField(key);
+			BTreePageId expected = null;
+			it = page.iterator();
+			while (it.hasNext()) {
+				BTreeEntry e = it.next();
+				if (f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+					expected = e.getLeftChild();
+					break;
+				}
+				expected = e.getRightChild();
+			}
+			assertEquals(expected, page.findChild(f));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
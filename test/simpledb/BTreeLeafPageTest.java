@@ -7,10 +7,12 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
 import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -347,6 +349,42 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot()
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+
+		// leave empty slots between the tuples
+		Iterator<Tuple> it = page.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			Tuple t = it.next();
+			if (i % 3 == 1)
+				page.deleteTuple(t);
+		}
+
+		for (int key = 0; key < 70000; key += 500) {
+			Field f = new IntField(key);
+			Iterator<Tuple> expected = page.iterator();
+			Tuple first = null;
+			while (expected.hasNext() && first == null) {
+				Tuple t = expected.next();
+				if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(0)))
+					first = t;
+			}
+
+			Iterator<Tuple> found = page.iterator(f);
+			if (first == null) {
+				assertEquals(page.getMaxTuples(), page.findSlot(f));
+				assertFalse(found.hasNext());
+			}
+			else {
+				assertEquals(first.getRecordId().getTupleNumber(), page.findSlot(f));
+				assertEquals(first, found.next());
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
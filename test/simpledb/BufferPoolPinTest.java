@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private HeapFile hf;
+    private List<PageId> pids;
+
+    /**
+     * Set up a heap file with three pages and a buffer pool with room for two.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        assertEquals(3, hf.numPages());
+        pids = new ArrayList<>();
+        for (int i = 0; i < 3; ++i)
+            pids.add(new HeapPageId(hf.getId(), i));
+        Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Pinned pages are never evicted, unpinned ones are.
+     */
+    @Test public void unpinPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Page first = bp.getPage(tid, pids.get(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pids.get(1), Permissions.READ_ONLY);
+
+        try {
+            bp.getPage(tid, pids.get(2), Permissions.READ_ONLY);
+            fail("expected an exception: both frames are pinned");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, pids.get(0));
+        bp.getPage(tid, pids.get(2), Permissions.READ_ONLY);
+        // page 0 was the only candidate: it comes back as a new copy
+        assertTrue(bp.holdsLock(tid, pids.get(0)));
+        bp.unpinPage(tid, pids.get(2));
+        assertNotSame(first, bp.getPage(tid, pids.get(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * A page pinned twice stays pinned until it is unpinned twice.
+     */
+    @Test public void pinCount() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Page first = bp.getPage(tid, pids.get(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pids.get(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pids.get(1), Permissions.READ_ONLY);
+        bp.unpinPage(tid, pids.get(1));
+
+        // page 0 is least recently used, but still pinned once: page 1 goes
+        bp.unpinPage(tid, pids.get(0));
+        bp.getPage(tid, pids.get(2), Permissions.READ_ONLY);
+        bp.unpinPage(tid, pids.get(2));
+        assertSame(first, bp.getPage(tid, pids.get(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Iterators unpin the pages they are done with, so a scan over more
+     * pages than the buffer pool holds succeeds.
+     */
+    @Test public void scanUnpins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 3, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -140,6 +140,28 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * In NO-FORCE mode committed pages reach the disk through the page
+     * cleaner.
+     */
+    @Test public void noForceCommit() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.setForce(false);
+        try {
+            Tuple t = Utility.getHeapTuple(1, 2);
+            bp.insertTuple(tid, empty.getId(), t);
+            bp.transactionComplete(tid);
+
+            // the cleaner may have been first
+            bp.cleanPages();
+            assertEquals(0, bp.cleanPages());
+            HeapPage p = (HeapPage) empty.readPage(t.getRecordId().getPageId());
+            assertEquals(504 - 1, p.getNumEmptySlots());
+        } finally {
+            bp.setForce(true);
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -14,6 +17,7 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.DeadlockPolicy;
 import simpledb.transaction.TransactionId;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -219,6 +223,100 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * A deadlock is broken by the detector rather than by the timeout, and
+   * the younger transaction is the one aborted.
+   * t1 acquires p0.write; t2 acquires p1.write; t1 attempts p1.write; t2
+   * attempts p0.write.
+   */
+  @Test public void testDetectorAbortsYoungest() throws Exception {
+    bp.getLockManager().setTimeout(0);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+
+    // allow initial write locks to acquire
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+
+    // tid2 is aborted, which releases p1 to tid1
+    lg1Write1.join(10 * WAIT_INTERVAL);
+    lg2Write0.join(10 * WAIT_INTERVAL);
+    assertTrue(lg1Write1.acquired());
+    assertNull(lg1Write1.getError());
+    assertFalse(lg2Write0.acquired());
+    assertNotNull(lg2Write0.getError());
+  }
+
+  /**
+   * A request that waits for a transaction that is not waiting itself is
+   * not aborted, however many times the detector runs meanwhile.
+   */
+  @Test public void testLongWaitNotAborted() throws Exception {
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(5 * POLL_INTERVAL);
+    assertFalse(lg2Write0.acquired());
+    assertNull(lg2Write0.getError());
+
+    bp.transactionComplete(tid1);
+    lg2Write0.join(10 * WAIT_INTERVAL);
+    assertTrue(lg2Write0.acquired());
+    assertNull(lg2Write0.getError());
+  }
+
+  /**
+   * Under wait-die, the younger transaction aborts as soon as it requests a
+   * lock the older one holds, and the older one waits for it.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp.getLockManager().setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getLockManager().setTimeout(0);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write1.acquired());
+    assertNull(lg1Write1.getError());
+
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2Write0.join(10 * WAIT_INTERVAL);
+    assertNotNull(lg2Write0.getError());
+    lg1Write1.join(10 * WAIT_INTERVAL);
+    assertTrue(lg1Write1.acquired());
+  }
+
+  /**
+   * Under wound-wait, the younger transaction waits for the older one, and
+   * is aborted once the older one requests a lock it holds.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp.getLockManager().setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getLockManager().setTimeout(0);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg2Write0 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write0.acquired());
+    assertNull(lg2Write0.getError());
+
+    LockGrabber lg1Write1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    lg1Write1.join(10 * WAIT_INTERVAL);
+    assertTrue(lg1Write1.acquired());
+    lg2Write0.join(10 * WAIT_INTERVAL);
+    assertNotNull(lg2Write0.getError());
+  }
+
   /**
    * JUnit suite target
    */
@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -81,6 +82,46 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A closed HeapFile reopens its file when it is read again.
+     */
+    @Test
+    public void readPageAfterClose() {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] data = hf.readPage(pid).getPageData();
+        hf.close();
+        assertArrayEquals(data, hf.readPage(pid).getPageData());
+        // closing twice is harmless
+        hf.close();
+        hf.close();
+        assertArrayEquals(data, hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Pages read through a memory mapping are the same as pages read into a
+     * buffer, and see later writes to the file.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 600, null, tuples);
+        HeapPageId pid = new HeapPageId(twoPageFile.getId(), 1);
+        HeapPage page = (HeapPage) twoPageFile.readPage(pid);
+
+        twoPageFile.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) twoPageFile.readPage(pid);
+        assertArrayEquals(page.getPageData(), mapped.getPageData());
+        assertEquals(2, twoPageFile.readPages(0, 2).size());
+        SystemTestUtil.matchTuples(twoPageFile, tid, tuples);
+
+        // dirtying the mapped page copies its before-image out of the mapping
+        mapped.markDirty(true, tid);
+        page.deleteTuple(page.iterator().next());
+        twoPageFile.writePage(page);
+        assertArrayEquals(page.getPageData(), twoPageFile.readPage(pid).getPageData());
+        assertArrayEquals(mapped.getPageData(), mapped.getBeforeImage().getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -125,6 +166,62 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 2 + 1,
+                null, null);
+
+        List<Page> pages = threePageFile.readPages(1, 5);
+        // the file ends after page 2
+        assertEquals(2, pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPageId pid = new HeapPageId(threePageFile.getId(), i + 1);
+            assertEquals(pid, pages.get(i).getId());
+            assertArrayEquals(threePageFile.readPage(pid).getPageData(), pages.get(i).getPageData());
+        }
+    }
+
+    /**
+     * Prefetched pages are served by the buffer pool, but only if they still
+     * match the disk.
+     */
+    @Test
+    public void prefetchPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 3,
+                null, null);
+        BufferPool bp = Database.getBufferPool();
+
+        List<Page> pages = threePageFile.readPages(0, 3);
+        assertEquals(0, bp.prefetchPages(pages.subList(0, 1), () -> false));
+        assertEquals(2, bp.prefetchPages(pages.subList(1, 3), () -> true));
+        // already resident
+        assertEquals(0, bp.prefetchPages(pages.subList(1, 2), () -> true));
+
+        assertNotSame(pages.get(0), bp.getPage(tid, pages.get(0).getId(), Permissions.READ_ONLY));
+        assertSame(pages.get(1), bp.getPage(tid, pages.get(1).getId(), Permissions.READ_ONLY));
+    }
+
+    /**
+     * A scan with read-ahead turned on returns every tuple exactly once.
+     */
+    @Test
+    public void testIteratorReadAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, tuples);
+
+        HeapFile.setReadAhead(true);
+        try {
+            SystemTestUtil.matchTuples(bigFile, tid, tuples);
+            // again, now that pages read ahead may be resident
+            SystemTestUtil.matchTuples(bigFile, tid, tuples);
+        } finally {
+            HeapFile.setReadAhead(false);
+        }
+    }
+
     /**
      * JUnit suite target
      */
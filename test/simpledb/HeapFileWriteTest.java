@@ -7,6 +7,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
@@ -90,6 +91,47 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Bytes written into a page past the end of the file extend it by whole
+     * pages, and leave the rest of the page alone.
+     */
+    @Test public void writePageBytes() throws Exception {
+        HeapPageId pid = new HeapPageId(empty.getId(), 1);
+        empty.writePageBytes(pid, 0, new byte[] { 1 });
+        assertEquals(2, empty.numPages());
+        HeapPage page = (HeapPage) empty.readPage(pid);
+        assertTrue(page.isSlotUsed(0));
+        assertEquals(503, page.getNumEmptySlots());
+
+        empty.writePageBytes(pid, 0, new byte[] { 3 });
+        assertEquals(2, empty.numPages());
+        assertEquals(502, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+        assertEquals(504, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0))).getNumEmptySlots());
+    }
+
+    /**
+     * Inserts go straight to a page with room, without locking the full pages
+     * before it, and use the room freed by deletes.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 2 + 1,
+                null, null);
+        BufferPool bp = Database.getBufferPool();
+        PageId first = new HeapPageId(threePageFile.getId(), 0);
+        PageId last = new HeapPageId(threePageFile.getId(), 2);
+
+        Page page = threePageFile.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0);
+        assertEquals(last, page.getId());
+        assertFalse(bp.holdsLock(tid, first));
+        assertFalse(bp.holdsLock(tid, new HeapPageId(threePageFile.getId(), 1)));
+
+        HeapPage full = (HeapPage) bp.getPage(tid, first, Permissions.READ_WRITE);
+        threePageFile.deleteTuple(tid, full.iterator().next());
+        page = threePageFile.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0);
+        assertEquals(first, page.getId());
+        assertEquals(3, threePageFile.numPages());
+    }
+
     /**
      * JUnit suite target
      */
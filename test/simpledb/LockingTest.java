@@ -1,16 +1,24 @@
 package simpledb;
 
+import java.util.Arrays;
+import java.util.Iterator;
+
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.LockType;
 import simpledb.transaction.TransactionId;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -193,6 +201,124 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for the lock manager's per-transaction lock table: a
+   * transaction completing releases exactly the locks it holds.
+   */
+  @Test public void completeReleasesOwnLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    assertEquals(Arrays.asList(p0), bp.getLockManager().lockedPages(tid1, LockType.EXCLUSIVE));
+    assertEquals(2, bp.getLockManager().lockedPages(tid1, LockType.SHARED).size());
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid1, p1));
+    assertTrue(bp.getLockManager().lockedPages(tid1, LockType.SHARED).isEmpty());
+    assertTrue(bp.holdsLock(tid2, p1));
+    grabLock(tid1, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for the lock queue: a reader arriving after a waiting writer
+   * queues behind it rather than sharing the page with the current reader.
+   */
+  @Test public void readerQueuesBehindWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired());
+  }
+
+  /**
+   * Unit test for lock escalation: past the threshold, a reader locks the
+   * whole table, which then keeps writers off all of its pages.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    bp.getLockManager().setEscalationThreshold(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(LockType.INTENTION_SHARED, bp.getLockManager().holdsTableLock(tid1, empty.getId()));
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockType.SHARED, bp.getLockManager().holdsTableLock(tid1, empty.getId()));
+    assertTrue(bp.getLockManager().lockedPages(tid1, LockType.SHARED).isEmpty());
+    assertTrue(bp.holdsLock(tid1, p0));
+
+    PageId p2 = new HeapPageId(empty.getId(), 2);
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for record locking: two transactions delete different records
+   * of a page side by side, and aborting one keeps the other's delete.
+   */
+  @Test public void recordLocksOnSamePage() throws Exception {
+    bp.setRecordLocking(true);
+    TransactionId tid = new TransactionId();
+    Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t1 = it.next();
+    Tuple t2 = it.next();
+    bp.transactionComplete(tid);
+
+    empty.deleteTuple(tid1, t1);
+    empty.deleteTuple(tid2, t2);
+    assertEquals(LockType.INTENTION_EXCLUSIVE, bp.getLockManager().holdsLock(tid1, p0));
+    assertEquals(LockType.INTENTION_EXCLUSIVE, bp.getLockManager().holdsLock(tid2, p0));
+    grabLock(tid, p0, Permissions.READ_ONLY, false);
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2);
+    HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(t1.getRecordId().getTupleNumber()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().getTupleNumber()));
+  }
+
+  /**
+   * Unit test for record locking with the page written back before its
+   * writers complete: aborting one still restores its record to the last
+   * committed state, not to the state written back.
+   */
+  @Test public void recordAbortAfterFlush() throws Exception {
+    bp.setRecordLocking(true);
+    TransactionId tid = new TransactionId();
+    Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+    Tuple t1 = it.next();
+    Tuple t2 = it.next();
+    bp.transactionComplete(tid);
+
+    empty.deleteTuple(tid1, t1);
+    empty.deleteTuple(tid2, t2);
+    bp.flushAllPages();
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2);
+    HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(t1.getRecordId().getTupleNumber()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().getTupleNumber()));
+    bp.transactionComplete(tid);
+
+    bp.cleanPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    assertTrue(page.isSlotUsed(t1.getRecordId().getTupleNumber()));
+    assertFalse(page.isSlotUsed(t2.getRecordId().getTupleNumber()));
+  }
+
   /**
    * JUnit suite target
    */
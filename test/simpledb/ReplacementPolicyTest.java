@@ -0,0 +1,146 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LRUKReplacementPolicy;
+import simpledb.storage.LRUReplacementPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQueueReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Admit pages 0..n-1 in order.
+     */
+    private static void admit(ReplacementPolicy policy, int n) {
+        for (int i = 0; i < n; i++)
+            policy.pageAdmitted(pid(i));
+    }
+
+    /**
+     * Unit test for LRUReplacementPolicy
+     */
+    @Test public void lru() {
+        ReplacementPolicy policy = new LRUReplacementPolicy();
+        admit(policy, 3);
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        assertEquals(pid(2), policy.chooseVictim(p -> !p.equals(pid(1))));
+
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        assertNull(policy.chooseVictim(p -> false));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy
+     */
+    @Test public void clock() {
+        ReplacementPolicy policy = new ClockReplacementPolicy();
+        admit(policy, 3);
+        // every page has its reference bit set, so the hand comes round to page 0
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(0));
+
+        // page 1 gets a second chance, page 2 does not
+        policy.pageAccessed(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+
+        // the freed slot is reused
+        policy.pageAdmitted(pid(3));
+        assertNull(policy.chooseVictim(p -> false));
+        assertEquals(pid(3), policy.chooseVictim(p -> p.equals(pid(3))));
+    }
+
+    /**
+     * LRU-K prefers pages with fewer than K references, even if they were
+     * used more recently.
+     */
+    @Test public void lruK() {
+        ReplacementPolicy policy = new LRUKReplacementPolicy(2, 16);
+        admit(policy, 3);
+        policy.pageAccessed(pid(0));
+        policy.pageAccessed(pid(1));
+        // a scan touches page 3 once
+        policy.pageAdmitted(pid(3));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(3), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(3));
+        // page 0 has the oldest second-to-last reference
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+
+        // page 2 comes back with its history and is no longer cold
+        policy.pageAdmitted(pid(2));
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * A scan over many pages does not evict the hot pages under 2Q.
+     */
+    @Test public void twoQueueScanResistance() {
+        ReplacementPolicy policy = new TwoQueueReplacementPolicy(8);
+        // pages 0..3 are seen, evicted to A1out and brought back: they become hot
+        for (int i = 0; i < 4; i++) {
+            policy.pageAdmitted(pid(i));
+            policy.pageRemoved(pid(i));
+            policy.pageAdmitted(pid(i));
+        }
+        // fill the rest of the pool
+        for (int i = 4; i < 8; i++)
+            policy.pageAdmitted(pid(i));
+
+        for (int i = 8; i < 100; i++) {
+            policy.pageAdmitted(pid(i));
+            PageId victim = policy.chooseVictim(p -> true);
+            assertTrue(victim.getPageNumber() >= 4);
+            policy.pageRemoved(victim);
+        }
+        assertNull(policy.chooseVictim(p -> false));
+    }
+
+    /**
+     * Pages that are not evictable are never chosen, whatever the policy.
+     */
+    @Test public void setEvictable() {
+        ReplacementPolicy[] policies = {
+            new LRUReplacementPolicy(), new ClockReplacementPolicy(),
+            new LRUKReplacementPolicy(), new TwoQueueReplacementPolicy(2)
+        };
+        for (ReplacementPolicy policy : policies) {
+            admit(policy, 2);
+            policy.setEvictable(pid(0), false);
+            policy.setEvictable(pid(1), false);
+            assertNull(policy.chooseVictim(p -> true));
+
+            policy.setEvictable(pid(1), true);
+            assertEquals(pid(1), policy.chooseVictim(p -> true));
+            policy.pageRemoved(pid(1));
+            assertNull(policy.chooseVictim(p -> true));
+
+            // removing a page that is not evictable forgets it
+            policy.pageRemoved(pid(0));
+            policy.setEvictable(pid(0), true);
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -216,6 +216,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void writePageBytes(PageId pid, int offset, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public List<Page> insertTuple(TransactionId tid, Tuple t) {
             throw new RuntimeException("not implemented");
         }
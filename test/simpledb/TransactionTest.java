@@ -3,11 +3,14 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.util.Iterator;
@@ -118,6 +121,63 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for snapshot isolation: a reader takes no lock, keeps seeing
+   * the page as of its snapshot after a writer commits, and cannot write the
+   * page the writer changed.
+   */
+  @Test public void snapshotIsolation() throws Exception {
+    bp.setSnapshotIsolation(true);
+    int free = ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots();
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    p.insertTuple(t);
+    p.markDirty(true, tid2);
+    bp.transactionComplete(tid2, true);
+
+    assertEquals(free, ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    TransactionId tid3 = new TransactionId();
+    assertEquals(free - 1, ((HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid3);
+
+    try {
+      bp.getPage(tid1, p2, Permissions.READ_WRITE);
+      fail("the page changed after the snapshot");
+    } catch (TransactionAbortedException e) {
+      bp.transactionComplete(tid1, false);
+    }
+  }
+
+  /**
+   * Unit test for snapshot isolation with a writer's page written back
+   * before it commits: readers still see the last committed state, and
+   * aborting the writer puts the page back to it, on disk too.
+   */
+  @Test public void snapshotAfterFlush() throws Exception {
+    bp.setSnapshotIsolation(true);
+    int free = ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots();
+
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid2);
+    bp.flushPages(tid2);
+
+    TransactionId tid3 = new TransactionId();
+    assertEquals(free, ((HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid3);
+    bp.transactionComplete(tid2, false);
+    assertEquals(free, ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid1);
+
+    bp.cleanPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid4 = new TransactionId();
+    assertEquals(free, ((HeapPage) bp.getPage(tid4, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid4);
+  }
+
   /**
    * JUnit suite target
    */
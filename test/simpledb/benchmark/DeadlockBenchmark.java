@@ -0,0 +1,113 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs the same workload under each {@link DeadlockPolicy}: threads running
+ * short transactions, each of which reads a few random pages of a small
+ * table and writes some of them, upgrading its read lock. An aborted
+ * transaction is retried as a new one. Pages are locked but not changed,
+ * so the run measures the lock manager rather than the log.
+ * <p>
+ * Run with {@code ant runbench -Dbench=DeadlockBenchmark}, optionally with
+ * {@code -Dargs="threads pages pagesPerTransaction seconds"}; the table is
+ * left in the working directory.
+ */
+public class DeadlockBenchmark {
+
+    public static void main(String[] args) throws IOException, DbException, InterruptedException {
+        final int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int numPages = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int pagesPerTransaction = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        Database.reset();
+        HeapFile hf = Utility.createEmptyHeapFile("deadlock_bench.db", 2);
+        PageId[] pids = new PageId[numPages];
+        for (int i = 0; i < numPages; i++) {
+            pids[i] = new HeapPageId(hf.getId(), i);
+            hf.writePage(new HeapPage((HeapPageId) pids[i], HeapPage.createEmptyPageData()));
+        }
+
+        System.out.println("threads: " + numThreads + ", pages: " + numPages
+                + ", pages per transaction: " + pagesPerTransaction
+                + ", cpus: " + Runtime.getRuntime().availableProcessors());
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            bp.stopCleaner();
+            LockManager lm = bp.getLockManager();
+            lm.setDeadlockPolicy(policy);
+            lm.setTimeout(LockManager.DEFAULT_TIMEOUT);
+
+            AtomicLong commits = new AtomicLong();
+            AtomicLong aborts = new AtomicLong();
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; t++) {
+                final Random random = new Random(t);
+                threads[t] = new Thread(() -> {
+                    while (System.currentTimeMillis() < deadline) {
+                        if (runTransaction(bp, pids, pagesPerTransaction, random)) {
+                            commits.incrementAndGet();
+                        } else {
+                            aborts.incrementAndGet();
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread t : threads) t.join();
+
+            System.out.printf("%-10s %8.0f commits/s %8.0f aborts/s %5.1f%% aborted%n", policy,
+                    commits.get() / (double) seconds, aborts.get() / (double) seconds,
+                    100.0 * aborts.get() / Math.max(1, commits.get() + aborts.get()));
+        }
+    }
+
+    /**
+     * Read some random pages, upgrading every other one to a write lock.
+     *
+     * @return if the transaction committed
+     */
+    private static boolean runTransaction(BufferPool bp, PageId[] pids, int pagesPerTransaction,
+            Random random) {
+        TransactionId tid = new TransactionId();
+        try {
+            for (int i = 0; i < pagesPerTransaction; i++) {
+                PageId pid = pids[random.nextInt(pids.length)];
+                bp.getPage(tid, pid, Permissions.READ_ONLY);
+                Thread.yield();
+                if (random.nextBoolean()) {
+                    bp.getPage(tid, pid, Permissions.READ_WRITE);
+                    Thread.yield();
+                }
+            }
+            bp.transactionComplete(tid, true);
+            return true;
+        } catch (TransactionAbortedException e) {
+            bp.transactionComplete(tid, false);
+            return false;
+        } catch (DbException e) {
+            e.printStackTrace();
+            bp.transactionComplete(tid, false);
+            return false;
+        }
+    }
+}
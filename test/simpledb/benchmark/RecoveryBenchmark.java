@@ -0,0 +1,102 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Times {@link LogFile#recover()} on a synthetic log, for several numbers of
+ * redo threads. The log is written straight through the LogFile: committed
+ * transactions that each insert a tuple into random pages of one table, none
+ * of which is written back, so recovery has to redo every update record.
+ * <p>
+ * Run with {@code ant runbench -Dbench=RecoveryBenchmark}, optionally with
+ * {@code -Dargs="pages transactions updates threads..."}; the log and the
+ * table are left in the working directory.
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws IOException, DbException {
+        final int numPages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int numTransactions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int updatesPerTransaction = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int[] threads = {1, 2, 4, 8};
+        if (args.length > 3) {
+            threads = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) threads[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        File table = new File("recovery_bench.db");
+        File pristine = new File("recovery_bench.db.orig");
+        writeLog(table, numPages, numTransactions, updatesPerTransaction);
+        Files.copy(table.toPath(), pristine.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        System.out.println("update records: " + numTransactions * updatesPerTransaction
+                + ", pages: " + numPages + ", cpus: " + Runtime.getRuntime().availableProcessors());
+        final int runs = 3;
+        try {
+            for (int n : threads) {
+                long[] millis = new long[runs];
+                for (int r = 0; r < runs; r++) {
+                    // crash: the table as it was before any page was written back
+                    Files.copy(pristine.toPath(), table.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    Database.reset();
+                    Utility.openHeapFile(2, table);
+                    LogFile.setRedoThreads(n);
+                    long start = System.nanoTime();
+                    Database.getLogFile().recover();
+                    millis[r] = (System.nanoTime() - start) / 1000000;
+                }
+                Arrays.sort(millis);
+                System.out.println(n + " redo threads: median " + millis[runs / 2]
+                        + " ms, min " + millis[0] + " ms");
+            }
+        } finally {
+            LogFile.resetRedoThreads();
+            pristine.delete();
+        }
+    }
+
+    /**
+     * Create the table with empty pages, and log transactions that insert
+     * into it without writing any page.
+     */
+    private static void writeLog(File table, int numPages, int numTransactions, int updatesPerTransaction)
+            throws IOException, DbException {
+        Database.reset();
+        HeapFile hf = Utility.createEmptyHeapFile(table.getPath(), 2);
+        HeapPage[] pages = new HeapPage[numPages];
+        for (int i = 0; i < numPages; i++) {
+            pages[i] = new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData());
+            hf.writePage(pages[i]);
+        }
+
+        LogFile log = Database.getLogFile();
+        Random random = new Random(0);
+        int value = 0;
+        for (int t = 0; t < numTransactions; t++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int u = 0; u < updatesPerTransaction; u++) {
+                HeapPage page = pages[random.nextInt(numPages)];
+                if (page.getNumEmptySlots() == 0) continue;
+                page.insertTuple(Utility.getHeapTuple(value++, 2));
+                log.logWrite(tid, page.getBeforeImage(), page);
+                page.setBeforeImage();
+            }
+            log.logCommit(tid);
+        }
+    }
+}
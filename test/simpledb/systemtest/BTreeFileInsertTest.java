@@ -6,6 +6,7 @@ import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
 import simpledb.storage.BufferPool;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.execution.Predicate.Op;
 
 import java.io.File;
@@ -284,6 +285,50 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		
 	}
 
+	@Test
+	public void bulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+
+		// runs of two pages of tuples spill to a few run files, and leaf
+		// pages are only half full
+		BTreeFile bf = BTreeBulkLoader.load(tid, table.getId(), 1, bFile, "bulk", 0.5, 2);
+		assertEquals(bf.getId(), Database.getCatalog().getTableId("bulk"));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+		assertTrue(bf.numPages() >= 2 * 5000 / 502);
+
+		// the index holds the table's tuples in key order
+		List<Integer> keys = new ArrayList<>();
+		for(List<Integer> tuple : tuples)
+			keys.add(tuple.get(1));
+		Collections.sort(keys);
+		DbFileIterator fit = bf.iterator(tid);
+		fit.open();
+		int count = 0;
+		while(fit.hasNext()) {
+			assertEquals(new IntField(keys.get(count)), fit.next().getField(1));
+			count++;
+		}
+		fit.close();
+		assertEquals(5000, count);
+
+		// and takes inserts as any other
+		Tuple t = BTreeUtility.getBTreeTuple(keys.get(2500), 2);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, t.getField(1));
+		fit = bf.indexIterator(tid, ipred);
+		fit.open();
+		count = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			count++;
+		}
+		fit.close();
+		assertEquals(Collections.frequency(keys, keys.get(2500)) + 1, count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
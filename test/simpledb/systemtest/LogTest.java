@@ -2,6 +2,8 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -14,6 +16,7 @@ import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import static org.junit.Assert.*;
 
@@ -320,6 +323,452 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestNoForceCommitAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // with NO-FORCE, T1 commits and T2 aborts on top of its
+        // changes, which may not be on disk yet
+        doInsert(hf1, 1, 2);
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRow(hf1, t, 3);
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        // *** Test:
+        // crash: redo installs whatever the cleaner did not write
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    // insert count rows, with the values from v1 on, in transaction t
+    void insertRows(HeapFile hf, Transaction t, int v1, int count)
+        throws DbException, TransactionAbortedException, IOException {
+        for(int i = 0; i < count; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(v1 + i, 2));
+    }
+
+    @Test public void TestStealAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // with STEAL, a transaction dirties more pages than the buffer
+        // pool holds, then aborts: the log undoes the pages written back
+        Database.resetBufferPool(3).setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(hf1, t, 100, 504 * 5);
+        t.abort();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 100, false);
+        look(hf1, t, 100 + 504 * 5 - 1, false);
+        t.commit();
+    }
+
+    @Test public void TestStealNeedsBegin()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // with STEAL, a transaction that logged no BEGIN record cannot be
+        // rolled back from the log, so its pages are not stolen: it runs
+        // out of buffer pool instead, and its abort leaves nothing on disk
+        Database.resetBufferPool(3).setSteal(true);
+        TransactionId tid = new TransactionId();
+        try {
+            for(int i = 0; i < 504 * 5; i++)
+                Database.getBufferPool().insertTuple(tid, hf1.getId(), Utility.getHeapTuple(100 + i, 2));
+            fail("the pages of a transaction without BEGIN were stolen");
+        } catch (DbException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 100, false);
+        t.commit();
+    }
+
+    @Test public void TestStealCommitOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // with STEAL, T1 writes more pages than the buffer pool holds and
+        // commits; T2 does too but is still running at the crash
+        Database.resetBufferPool(3).setSteal(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(hf1, t1, 100, 504 * 4);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRows(hf2, t2, 5000, 504 * 4);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 100, true);
+        look(hf1, t, 100 + 504 * 4 - 1, true);
+        look(hf2, t, 5000, false);
+        look(hf2, t, 5000 + 504 * 4 - 1, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // committers that arrive while the log is being forced wait for
+        // it, and then share a single force
+        final int waiters = 7;
+        final CountDownLatch forcing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean first = new AtomicBoolean(true);
+        Database.getLogFile().setGroupForceHook(() -> {
+            if (!first.compareAndSet(true, false)) return;
+            forcing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Runnable commit = () -> {
+            try {
+                Transaction t = new Transaction();
+                t.start();
+                t.commit();
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        };
+
+        // the first committer leads a group of its own, and stops in its force
+        long records = Database.getLogFile().getTotalRecords();
+        long forces = Database.getLogFile().getForceCount();
+        List<Thread> committers = new ArrayList<>();
+        committers.add(new Thread(commit));
+        committers.get(0).start();
+        forcing.await();
+
+        // the others append their COMMIT records meanwhile
+        for (int i = 0; i < waiters; i++) {
+            Thread c = new Thread(commit);
+            committers.add(c);
+            c.start();
+        }
+        while (Database.getLogFile().getTotalRecords() < records + 2 * (waiters + 1)) {
+            assertTrue(errors.toString(), errors.isEmpty());
+            Thread.sleep(10);
+        }
+        assertEquals(forces, Database.getLogFile().getForceCount());
+
+        // one force for the leader, and one for everybody who waited on it
+        release.countDown();
+        for (Thread c : committers) c.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(forces + 2, Database.getLogFile().getForceCount());
+        Database.getLogFile().setGroupForceHook(null);
+
+        // each commit is durable once commit() returns
+        doInsert(hf1, 1, 2);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    @Test public void TestWriteBackForcesByLsn()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // the commit record forced the log past the page's update
+        // record, so writing the page back does not force it again
+        doInsert(hf1, 1, 2);
+        long forces = Database.getLogFile().getForceCount();
+        Database.getBufferPool().cleanPages();
+        assertEquals(forces, Database.getLogFile().getForceCount());
+
+        HeapPage p = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        int count = 0;
+        for(Iterator<Tuple> it = p.iterator(); it.hasNext(); it.next())
+            count++;
+        assertEquals(2, count);
+    }
+
+    @Test public void TestUpdateRecordsLogChangedBytes()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // the two update records of an insert log a tuple each, not
+        // a before-image and an after-image of the page
+        doInsert(hf1, 1, 2);
+        long logSize = new File("log.0").length(); // the commit wrote it out
+        assertTrue("log is " + logSize + " bytes", logSize < BufferPool.getPageSize());
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+    }
+
+    void deleteRow(HeapFile hf, Transaction t, int v1)
+        throws DbException, TransactionAbortedException, IOException {
+        Tuple victim = null;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while(victim == null && scan.hasNext()){
+            Tuple tu = scan.next();
+            if(((IntField)tu.getField(0)).getValue() == v1)
+                victim = tu;
+        }
+        scan.close();
+        assertNotNull(victim);
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+    }
+
+    @Test public void TestDeltasOfOnePageCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+
+        // *** Test:
+        // a page logged twice by one transaction, the second time
+        // with a header byte changed back, is redone to its last image
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRows(hf1, t1, 0, 81);
+        Database.getBufferPool().flushAllPages();
+        // slot 80, alone in its header byte
+        deleteRow(hf1, t1, 80);
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 79, true);
+        look(hf1, t, 80, false);
+        t.commit();
+    }
+
+    @Test public void TestDeltasOfOnePageAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // rolling back several deltas of a page restores the page
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        deleteRow(hf1, t1, 1);
+        insertRow(hf1, t1, 4);
+        abort(t1);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestCheckpointDeletesSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(1024);
+        try {
+            setup();
+            for(int i = 0; i < 20; i++)
+                doInsert(hf1, 2 * i, 2 * i + 1);
+            int segments = Database.getLogFile().getNumSegments();
+            assertTrue(segments > 2);
+
+            // *** Test:
+            // a checkpoint deletes the segments older than both it and
+            // the first record of a transaction open across it
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf1, t1, 100);
+            Database.getLogFile().logCheckpoint();
+            assertTrue(Database.getLogFile().getNumSegments() < segments);
+            insertRow(hf1, t1, 101);
+            t1.commit();
+            doInsert(hf2, 1, 2);
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            for(int i = 0; i < 40; i++)
+                look(hf1, t, i, true);
+            look(hf1, t, 100, true);
+            look(hf1, t, 101, true);
+            look(hf2, t, 1, true);
+            look(hf2, t, 2, true);
+            t.commit();
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+    }
+
+    @Test public void TestFuzzyCheckpointCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setForce(false);
+        // no cleaner: committed pages stay in the buffer pool only
+        Database.getBufferPool().stopCleaner();
+
+        // *** Test:
+        // a checkpoint writes no page, it records the dirty ones
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1);
+        insertRow(hf1, t1, 2);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        assertTrue(Database.getBufferPool().getDirtyPageTable().containsKey(pid));
+        assertTrue(Arrays.equals(HeapPage.createEmptyPageData(), hf1.readPage(pid).getPageData()));
+
+        // *** Test:
+        // recovery redoes the dirty page from before the checkpoint
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3);
+        insertRow(hf1, t2, 4);
+        insertRow(hf2, t2, 5);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, true);
+        look(hf2, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestAbortCheckpointCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1's rollback is logged, recovery redoes it rather than
+        // rolling T1 back again, before T2's change to the same page
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf1, t1, 4);
+        abort(t1);
+
+        Database.getLogFile().logCheckpoint();
+        doInsert(hf1, 5, 6);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, true);
+        look(hf1, t, 6, true);
+        t.commit();
+    }
+
+    @Test public void TestParallelRedoCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setRedoThreads(4);
+        try {
+            setup();
+            Database.getBufferPool().setForce(false);
+            Database.getBufferPool().stopCleaner();
+
+            // *** Test:
+            // the pages of both tables, each logged several times, are
+            // redone by several threads, and a loser is rolled back;
+            // each transaction deletes a row the one before inserted,
+            // so the deltas of a page must be redone in order
+            for(int i = 0; i < 10; i++){
+                Transaction t = new Transaction();
+                t.start();
+                insertRows(hf1, t, 1000 * i, 200);
+                insertRows(hf2, t, 1000 * i, 50);
+                if(i > 0)
+                    deleteRow(hf1, t, 1000 * (i - 1));
+                t.commit();
+            }
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf1, t1, 20000);
+            Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            for(int i = 0; i < 10; i++){
+                look(hf1, t, 1000 * i, i == 9);
+                look(hf1, t, 1000 * i + 199, true);
+                look(hf2, t, 1000 * i + 49, true);
+            }
+            look(hf1, t, 20000, false);
+            t.commit();
+        } finally {
+            LogFile.resetRedoThreads();
+        }
+    }
+
     @Test public void TestOpenCrash()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -0,0 +1,159 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.SecondaryIndex;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+	/** @return the number of tuples of the table whose field matches the value */
+	private static int lookup(SecondaryIndex index, TransactionId tid, int value)
+			throws DbException, TransactionAbortedException {
+		DbFileIterator it = index.lookup(tid, new IndexPredicate(Op.EQUALS, new IntField(value)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(new IntField(value), it.next().getField(index.getField()));
+			count++;
+		}
+		it.close();
+		return count;
+	}
+
+	private static Tuple tuple(TupleDesc td, int... values) {
+		Tuple t = new Tuple(td);
+		for(int i = 0; i < values.length; i++)
+			t.setField(i, new IntField(values[i]));
+		return t;
+	}
+
+	@Test
+	public void indexesFollowInsertsAndDeletes() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile table = SystemTestUtil.createRandomHeapFile(3, 2000, 64, null, tuples);
+		TupleDesc td = table.getTupleDesc();
+
+		// an index on each column of the table
+		TransactionId tid = new TransactionId();
+		SecondaryIndex[] indexes = new SecondaryIndex[3];
+		for(int f = 0; f < 3; f++) {
+			File bFile = File.createTempFile("secondary", ".dat");
+			bFile.deleteOnExit();
+			indexes[f] = SecondaryIndex.create(tid, table.getId(), f, bFile, "secondary" + f, 1.0);
+		}
+		assertEquals(3, Database.getCatalog().getIndexes(table.getId()).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		// point lookups on each column find the tuples with the value
+		tid = new TransactionId();
+		List<Integer> first = tuples.get(0);
+		for(int f = 0; f < 3; f++) {
+			int expected = 0;
+			for(List<Integer> tuple : tuples) {
+				if(tuple.get(f).equals(first.get(f)))
+					expected++;
+			}
+			assertEquals(expected, lookup(indexes[f], tid, first.get(f)));
+		}
+
+		// Delete and Insert update all the indexes
+		Predicate p = new Predicate(0, Op.EQUALS, new IntField(first.get(0)));
+		Delete delete = new Delete(tid, new Filter(p, new SeqScan(tid, table.getId(), "")));
+		delete.open();
+		while(delete.hasNext())
+			delete.next();
+		delete.close();
+		Insert insert = new Insert(tid, new TupleIterator(td,
+				Collections.singletonList(tuple(td, first.get(0), 100, 100))), table.getId());
+		insert.open();
+		while(insert.hasNext())
+			insert.next();
+		insert.close();
+		assertEquals(1, lookup(indexes[0], tid, first.get(0)));
+		assertEquals(1, lookup(indexes[1], tid, 100));
+		assertEquals(1, lookup(indexes[2], tid, 100));
+		Database.getBufferPool().transactionComplete(tid);
+
+		// an aborted insert leaves the indexes as they were
+		tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, table.getId(), tuple(td, 200, 200, 200));
+		assertEquals(1, lookup(indexes[2], tid, 200));
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		for(int f = 0; f < 3; f++) {
+			assertEquals(0, lookup(indexes[f], tid, 200));
+			BTreeChecker.checkRep(indexes[f].getFile(), tid, new HashMap<>(), false);
+		}
+		assertEquals(1, lookup(indexes[0], tid, first.get(0)));
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	@Test
+	public void openRebuildsStaleIndex() throws Exception {
+		HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+		TupleDesc td = table.getTupleDesc();
+		File bFile = File.createTempFile("secondary", ".dat");
+		bFile.deleteOnExit();
+		TransactionId tid = new TransactionId();
+		SecondaryIndex.create(tid, table.getId(), 1, bFile, "secondary", 1.0);
+		Database.getBufferPool().transactionComplete(tid);
+		assertFalse(new File(bFile.getPath() + ".tmp").exists());
+
+		// an index written after its table is trusted
+		long tableWritten = table.getFile().lastModified();
+		long newer = tableWritten + 10000;
+		assertTrue(bFile.setLastModified(newer));
+		Database.reset();
+		Database.getCatalog().addTable(table, "table");
+		tid = new TransactionId();
+		SecondaryIndex index = SecondaryIndex.open(tid, table.getId(), 1, bFile, "secondary");
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(newer, bFile.lastModified());
+		assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(table.getId()));
+
+		// a value updated in place, while the index was not loaded, leaves the
+		// number of entries as it was, but the index is older than the table
+		Database.reset();
+		Database.getCatalog().addTable(table, "table");
+		tid = new TransactionId();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		Tuple victim = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, victim);
+		Database.getBufferPool().insertTuple(tid, table.getId(), tuple(td, 1, -1));
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		long older = table.getFile().lastModified() - 10000;
+		assertTrue(bFile.setLastModified(older));
+		Database.reset();
+		Database.getCatalog().addTable(table, "table");
+		tid = new TransactionId();
+		index = SecondaryIndex.open(tid, table.getId(), 1, bFile, "secondary");
+		assertEquals(1, lookup(index, tid, -1));
+		Database.getBufferPool().transactionComplete(tid);
+		assertNotEquals(older, bFile.lastModified());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}